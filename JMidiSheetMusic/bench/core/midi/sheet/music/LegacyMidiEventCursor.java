@@ -0,0 +1,320 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ * 
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+/**
+ * @class LegacyMidiEventCursor The LegacyMidiEventCursor walks the events of one MTrk
+ *        chunk straight from a MidiFileReader, one event at a time. Each call
+ *        to Next() decodes the next event into a MidiEvent supplied by the
+ *        caller, so a whole track can be scanned with a single MidiEvent and
+ *        no allocation per event.
+ * 
+ *        A typical single-pass analysis looks like:
+ * 
+ *        LegacyMidiEventCursor cursor = new LegacyMidiEventCursor(file); MidiEvent mevent
+ *        = new MidiEvent(); while (cursor.Next(mevent)) { ... }
+ * 
+ *        The sysex/meta data is not copied into mevent.Value. After Next()
+ *        returns, the reader is positioned at the start of the data (see
+ *        GetPayloadOffset()), and the caller may read it from the reader, or
+ *        with ReadValue(). Any data left unread is skipped by the following
+ *        call to Next(). Tempo and time signature meta events are decoded
+ *        into mevent.Tempo, mevent.Numerator and mevent.Denominator.
+ * 
+ *        GetData1() and GetData2() return the raw data bytes of the current
+ *        event, in the same layout as the MidiEventList columns.
+ * 
+ *        This is the MidiEventCursor as it was before the status byte table,
+ *        kept unchanged so MidiEventCursorBenchmark can time it.
+ */
+public class LegacyMidiEventCursor
+{
+   private MidiFileReader file;
+   /** The reader holding the track data */
+   private int trackend;
+   /** The file offset where the track data ends */
+   private int starttime;
+   /** The absolute time of the current event */
+   private int eventflag;
+   /** The last event code seen, for running status */
+   private int data1;
+   /** The first data byte, or the metaevent code */
+   private int data2;
+   /** The second data byte, or the tempo */
+   private int payloadoffset;
+   /** The file offset of the current sysex/meta data */
+   private int payloadend;
+
+   /** The file offset where the current sysex/meta data ends */
+
+   /**
+    * Create a cursor over the track starting at the current offset of the
+    * reader. The offset should be at the start of the MTrk header.
+    * 
+    * @throws MidiFileException
+    */
+   public LegacyMidiEventCursor(MidiFileReader file) throws MidiFileException
+   {
+      this.file = file;
+      String id = file.ReadAscii(4);
+      if (!id.equals("MTrk"))
+      {
+         throw new MidiFileException("Bad MTrk header", file.GetOffset() - 4);
+      }
+      int tracklen = file.ReadInt();
+      Start(tracklen);
+   }
+
+   /**
+    * Create a cursor over a track whose MTrk header has already been read.
+    * The offset of the reader should be at the start of the track data.
+    */
+   public LegacyMidiEventCursor(MidiFileReader file, int tracklen)
+   {
+      this.file = file;
+      Start(tracklen);
+   }
+
+   private void Start(int tracklen)
+   {
+      trackend = tracklen + file.GetOffset();
+      starttime = 0;
+      eventflag = 0;
+      payloadoffset = file.GetOffset();
+      payloadend = payloadoffset;
+   }
+
+   /**
+    * Decode the next event of the track into mevent. Return false at the end
+    * of the track, or if the file is truncated before the next event.
+    * 
+    * @throws MidiFileException
+    */
+   public boolean Next(MidiEvent mevent) throws MidiFileException
+   {
+      /* Skip the sysex/meta data the caller did not read */
+      if (file.GetOffset() < payloadend)
+      {
+         file.Skip(payloadend - file.GetOffset());
+      }
+      if (file.GetOffset() >= trackend)
+      {
+         return false;
+      }
+
+      // If the midi file is truncated here, we can still recover.
+      // Just stop at what we've parsed so far.
+
+      int deltatime;
+      char peekevent;
+      try
+      {
+         deltatime = file.ReadVarlen();
+         peekevent = file.Peek();
+      }
+      catch (MidiFileException e)
+      {
+         return false;
+      }
+      starttime += deltatime;
+
+      mevent.DeltaTime = deltatime;
+      mevent.StartTime = starttime;
+      mevent.HasEventflag = false;
+      mevent.Channel = 0;
+      mevent.Notenumber = 0;
+      mevent.Velocity = 0;
+      mevent.Instrument = 0;
+      mevent.KeyPressure = 0;
+      mevent.ChanPressure = 0;
+      mevent.ControlNum = 0;
+      mevent.ControlValue = 0;
+      mevent.PitchBend = 0;
+      mevent.Numerator = 0;
+      mevent.Denominator = 0;
+      mevent.Tempo = 0;
+      mevent.Metaevent = 0;
+      mevent.Metalength = 0;
+      mevent.Value = null;
+
+      /* Without a new event code, the previous one is used (running status) */
+      if (peekevent >= MidiFile.EventNoteOff)
+      {
+         mevent.HasEventflag = true;
+         eventflag = file.ReadByte();
+      }
+      data1 = 0;
+      data2 = 0;
+      payloadoffset = file.GetOffset();
+      payloadend = payloadoffset;
+
+      if (eventflag >= MidiFile.EventNoteOff
+            && eventflag < MidiFile.EventKeyPressure)
+      {
+         int code = eventflag & 0xF0;
+         data1 = file.ReadByte();
+         data2 = file.ReadByte();
+         mevent.EventFlag = code;
+         mevent.Channel = eventflag - code;
+         mevent.Notenumber = data1;
+         mevent.Velocity = data2;
+      }
+      else if (eventflag >= MidiFile.EventKeyPressure
+            && eventflag < MidiFile.EventKeyPressure + 16)
+      {
+         data1 = file.ReadByte();
+         data2 = file.ReadByte();
+         mevent.EventFlag = MidiFile.EventKeyPressure;
+         mevent.Channel = eventflag - MidiFile.EventKeyPressure;
+         mevent.Notenumber = data1;
+         mevent.KeyPressure = data2;
+      }
+      else if (eventflag >= MidiFile.EventControlChange
+            && eventflag < MidiFile.EventControlChange + 16)
+      {
+         data1 = file.ReadByte();
+         data2 = file.ReadByte();
+         mevent.EventFlag = MidiFile.EventControlChange;
+         mevent.Channel = eventflag - MidiFile.EventControlChange;
+         mevent.ControlNum = data1;
+         mevent.ControlValue = data2;
+      }
+      else if (eventflag >= MidiFile.EventProgramChange
+            && eventflag < MidiFile.EventProgramChange + 16)
+      {
+         data1 = file.ReadByte();
+         mevent.EventFlag = MidiFile.EventProgramChange;
+         mevent.Channel = eventflag - MidiFile.EventProgramChange;
+         mevent.Instrument = data1;
+      }
+      else if (eventflag >= MidiFile.EventChannelPressure
+            && eventflag < MidiFile.EventChannelPressure + 16)
+      {
+         data1 = file.ReadByte();
+         mevent.EventFlag = MidiFile.EventChannelPressure;
+         mevent.Channel = eventflag - MidiFile.EventChannelPressure;
+         mevent.ChanPressure = data1;
+      }
+      else if (eventflag >= MidiFile.EventPitchBend
+            && eventflag < MidiFile.EventPitchBend + 16)
+      {
+         data1 = file.ReadByte();
+         data2 = file.ReadByte();
+         mevent.EventFlag = MidiFile.EventPitchBend;
+         mevent.Channel = eventflag - MidiFile.EventPitchBend;
+         mevent.PitchBend = (data1 << 8) | data2;
+      }
+      else if (eventflag == MidiFile.SysexEvent1
+            || eventflag == MidiFile.SysexEvent2)
+      {
+         int metalength = file.ReadVarlen();
+         mevent.EventFlag = eventflag;
+         mevent.Metalength = metalength;
+         payloadoffset = file.GetOffset();
+         payloadend = payloadoffset + metalength;
+      }
+      else if (eventflag == MidiFile.MetaEvent)
+      {
+         data1 = file.ReadByte();
+         int metalength = file.ReadVarlen();
+         mevent.EventFlag = MidiFile.MetaEvent;
+         mevent.Metaevent = data1;
+         mevent.Metalength = metalength;
+         payloadoffset = file.GetOffset();
+         payloadend = payloadoffset + metalength;
+
+         if (data1 == MidiFile.MetaEventTempo)
+         {
+            if (metalength != 3)
+            {
+               throw new MidiFileException("Meta Event Tempo len == "
+                     + metalength + " != 3", payloadend);
+            }
+            data2 = (file.Peek(0) << 16) | (file.Peek(1) << 8) | file.Peek(2);
+            mevent.Tempo = data2;
+         }
+         else if (data1 == MidiFile.MetaEventTimeSignature)
+         {
+            if (metalength < 2)
+            {
+               mevent.Denominator = 4;
+            }
+            else
+            {
+               mevent.Numerator = file.Peek(0);
+               mevent.Denominator = 1 << file.Peek(1);
+            }
+         }
+      }
+      else
+      {
+         throw new MidiFileException("Unknown event " + eventflag,
+               file.GetOffset() - 1);
+      }
+      return true;
+   }
+
+   /** Return the reader holding the track data */
+   public MidiFileReader GetReader()
+   {
+      return file;
+   }
+
+   /** Return the file offset where the track data ends */
+   public int GetTrackEnd()
+   {
+      return trackend;
+   }
+
+   /**
+    * Return the first data byte of the current event: the note number,
+    * controller number, program number, channel pressure, the high byte of a
+    * pitch bend, or the metaevent code.
+    */
+   public int GetData1()
+   {
+      return data1;
+   }
+
+   /**
+    * Return the second data byte of the current event: the velocity, key
+    * pressure, controller value, the low byte of a pitch bend, or the tempo of
+    * a tempo meta event.
+    */
+   public int GetData2()
+   {
+      return data2;
+   }
+
+   /** Return the file offset of the sysex/meta data of the current event */
+   public int GetPayloadOffset()
+   {
+      return payloadoffset;
+   }
+
+   /**
+    * Read and return the sysex/meta data of the current event. This must be
+    * called before anything else reads from the reader.
+    * 
+    * @throws MidiFileException
+    */
+   public char[] ReadValue() throws MidiFileException
+   {
+      if (file.GetOffset() != payloadoffset)
+      {
+         throw new IllegalStateException("The event data was already read");
+      }
+      return file.ReadBytes(payloadend - payloadoffset);
+   }
+}
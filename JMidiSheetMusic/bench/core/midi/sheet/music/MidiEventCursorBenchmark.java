@@ -0,0 +1,168 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * @class MidiEventCursorBenchmark Command-line program that measures the cost
+ *        per event of decoding track data with the table-driven
+ *        MidiEventCursor, compared with the cursor it replaced
+ *        (LegacyMidiEventCursor), which went through a chain of range checks
+ *        and read every byte through the reader. The songs are loaded into
+ *        memory first, and both cursors fill a single MidiEvent, so only the
+ *        decoding is timed.
+ * 
+ *        To run: java core.midi.sheet.music.MidiEventCursorBenchmark [songdir]
+ *        [rounds]. The song directory defaults to "songs".
+ */
+public class MidiEventCursorBenchmark
+{
+
+   /** Read the whole file into a byte[] */
+   private static byte[] ReadBytes(File info) throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(info, "r");
+      try
+      {
+         byte[] data = new byte[(int) file.length()];
+         file.readFully(data);
+         return data;
+      }
+      finally
+      {
+         file.close();
+      }
+   }
+
+   /** Decode the track data with the old LegacyMidiEventCursor */
+   private static int LegacyScan(MidiFileReader file, int tracklen,
+         MidiEvent mevent) throws MidiFileException
+   {
+      int count = 0;
+      LegacyMidiEventCursor cursor = new LegacyMidiEventCursor(file, tracklen);
+      while (cursor.Next(mevent))
+      {
+         count++;
+      }
+      if (file.GetOffset() < cursor.GetTrackEnd())
+      {
+         file.Skip(cursor.GetTrackEnd() - file.GetOffset());
+      }
+      return count;
+   }
+
+   /** Decode the track data with a MidiEventCursor */
+   private static int CursorScan(MidiFileReader file, int tracklen,
+         MidiEvent mevent) throws MidiFileException
+   {
+      int count = 0;
+      MidiEventCursor cursor = new MidiEventCursor(file, tracklen);
+      while (cursor.Next(mevent))
+      {
+         count++;
+      }
+      if (file.GetOffset() < cursor.GetTrackEnd())
+      {
+         file.Skip(cursor.GetTrackEnd() - file.GetOffset());
+      }
+      return count;
+   }
+
+   /**
+    * Decode every track of the file with the old cursor, or the new one.
+    * Return the number of events.
+    */
+   private static int Scan(byte[] data, boolean cursor, MidiEvent mevent)
+         throws MidiFileException
+   {
+      MidiFileReader file = new MidiFileReader(data);
+      int count = 0;
+      while (file.GetOffset() + 8 <= data.length)
+      {
+         String id = file.ReadAscii(4);
+         int len = Math.min(file.ReadInt(), data.length - file.GetOffset());
+         if (!id.equals("MTrk"))
+         {
+            file.Skip(len);
+         }
+         else if (cursor)
+         {
+            count += CursorScan(file, len, mevent);
+         }
+         else
+         {
+            count += LegacyScan(file, len, mevent);
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Decode all songs the given number of rounds, and return the time per
+    * event in nanoseconds.
+    */
+   private static double Time(ArrayList<byte[]> songs, int rounds,
+         boolean cursor, MidiEvent mevent) throws MidiFileException
+   {
+      long events = 0;
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++)
+      {
+         for (byte[] song : songs)
+         {
+            events += Scan(song, cursor, mevent);
+         }
+      }
+      return (double) (System.nanoTime() - start) / events;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      File dir = new File(args.length > 0 ? args[0] : "songs");
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+      File[] files = dir.listFiles();
+      if (files == null)
+      {
+         System.out.println("Usage: MidiEventCursorBenchmark [songdir] [rounds]");
+         return;
+      }
+      ArrayList<byte[]> songs = new ArrayList<byte[]>();
+      for (File song : files)
+      {
+         if (song.getName().toLowerCase().endsWith(".mid"))
+         {
+            songs.add(ReadBytes(song));
+         }
+      }
+
+      /* Warm up both decoders, then time each one on its own. The best of
+       * several trials is reported, to keep out GC and scheduling noise.
+       */
+      MidiEvent mevent = new MidiEvent();
+      Time(songs, rounds, false, mevent);
+      Time(songs, rounds, true, mevent);
+      double legacy = Double.MAX_VALUE, cursor = Double.MAX_VALUE;
+      for (int trial = 0; trial < 5; trial++)
+      {
+         legacy = Math.min(legacy, Time(songs, rounds, false, mevent));
+         cursor = Math.min(cursor, Time(songs, rounds, true, mevent));
+      }
+      System.out.println(String.format("old cursor:   %.2f ns/event", legacy));
+      System.out.println(String.format("status table: %.2f ns/event", cursor));
+   }
+}
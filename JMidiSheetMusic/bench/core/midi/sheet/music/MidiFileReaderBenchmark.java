@@ -0,0 +1,251 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @class MidiFileReaderBenchmark Command-line program that compares the time
+ *        needed to load and scan midi files through the old char[] reader
+ *        (LegacyMidiFileReader, which reads the whole file into a char[]) and
+ *        through the current MidiFileReader, which reads the file into a
+ *        ByteBuffer, or maps it if "mapped" is given.
+ * 
+ *        Both readers load the same file from disk. A song is only timed if
+ *        both readers see the same number of events, so the two totals always
+ *        cover the same work. The songs that don't match are listed.
+ * 
+ *        Without "mapped", a second pass times only the decoding, on the same
+ *        bytes already in memory: the char[] reader over a char[], and
+ *        MidiFileReader over a byte[].
+ * 
+ *        To run: java core.midi.sheet.music.MidiFileReaderBenchmark [songdir]
+ *        [rounds] [mapped]. The song directory defaults to "songs". The two
+ *        MidiFileReader modes are timed in separate runs, so that one doesn't
+ *        skew how the JIT compiles the other.
+ */
+public class MidiFileReaderBenchmark
+{
+
+   /**
+    * Walk every chunk and every track event of the file, using only the
+    * Peek/ReadByte/ReadVarlen/Skip surface of the reader. Return the number of
+    * events seen.
+    */
+   private static int Scan(MidiFileReader file) throws MidiFileException
+   {
+      int count = 0;
+      int end = file.GetLength();
+      while (file.GetOffset() + 8 <= end)
+      {
+         String id = file.ReadAscii(4);
+         int len = file.ReadInt();
+         if (!id.equals("MTrk"))
+         {
+            file.Skip(Math.min(len, end - file.GetOffset()));
+            continue;
+         }
+         int trackend = Math.min(file.GetOffset() + len, end);
+         int eventflag = 0;
+         while (file.GetOffset() < trackend)
+         {
+            file.ReadVarlen();
+            if (file.Peek() >= MidiFile.EventNoteOff)
+            {
+               eventflag = file.ReadByte();
+            }
+            if (eventflag == MidiFile.MetaEvent)
+            {
+               file.ReadByte();
+               file.Skip(file.ReadVarlen());
+            }
+            else if (eventflag == MidiFile.SysexEvent1
+                  || eventflag == MidiFile.SysexEvent2)
+            {
+               file.Skip(file.ReadVarlen());
+            }
+            else if (eventflag >= MidiFile.EventProgramChange
+                  && eventflag < MidiFile.EventPitchBend)
+            {
+               file.Skip(1);
+            }
+            else
+            {
+               file.Skip(2);
+            }
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /** The same scan as above, through the old char[] reader */
+   private static int Scan(LegacyMidiFileReader file) throws MidiFileException
+   {
+      int count = 0;
+      int end = file.GetData().length;
+      while (file.GetOffset() + 8 <= end)
+      {
+         String id = file.ReadAscii(4);
+         int len = file.ReadInt();
+         if (!id.equals("MTrk"))
+         {
+            file.Skip(Math.min(len, end - file.GetOffset()));
+            continue;
+         }
+         int trackend = Math.min(file.GetOffset() + len, end);
+         int eventflag = 0;
+         while (file.GetOffset() < trackend)
+         {
+            file.ReadVarlen();
+            if (file.Peek() >= MidiFile.EventNoteOff)
+            {
+               eventflag = file.ReadByte();
+            }
+            if (eventflag == MidiFile.MetaEvent)
+            {
+               file.ReadByte();
+               file.Skip(file.ReadVarlen());
+            }
+            else if (eventflag == MidiFile.SysexEvent1
+                  || eventflag == MidiFile.SysexEvent2)
+            {
+               file.Skip(file.ReadVarlen());
+            }
+            else if (eventflag >= MidiFile.EventProgramChange
+                  && eventflag < MidiFile.EventPitchBend)
+            {
+               file.Skip(1);
+            }
+            else
+            {
+               file.Skip(2);
+            }
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Scan the song with both readers. Return the number of events, or -1 if
+    * either reader fails or the two counts differ.
+    */
+   private static int Check(File song, boolean mapped) throws IOException
+   {
+      try
+      {
+         int oldevents = Scan(new LegacyMidiFileReader(song.getPath()));
+         int newevents = Scan(new MidiFileReader(song.getPath(), mapped));
+         return (oldevents == newevents) ? newevents : -1;
+      }
+      catch (MidiFileException e)
+      {
+         return -1;
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      File dir = new File(args.length > 0 ? args[0] : "songs");
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+      boolean mapped = args.length > 2 && args[2].equals("mapped");
+      File[] files = dir.listFiles();
+      if (files == null)
+      {
+         System.out.println(
+               "Usage: MidiFileReaderBenchmark [songdir] [rounds] [mapped]");
+         return;
+      }
+
+      List<File> songs = new ArrayList<File>();
+      int events = 0;
+      for (File song : files)
+      {
+         if (!song.getName().toLowerCase().endsWith(".mid"))
+            continue;
+         int count = Check(song, mapped);
+         if (count < 0)
+         {
+            System.out.println("skipped " + song.getName()
+                  + ": the readers don't agree");
+            continue;
+         }
+         songs.add(song);
+         events += count;
+      }
+
+      long oldtime = 0, newtime = 0;
+      int oldevents = 0, newevents = 0;
+      for (int round = 0; round < rounds; round++)
+      {
+         for (File song : songs)
+         {
+            long start = System.nanoTime();
+            oldevents += Scan(new LegacyMidiFileReader(song.getPath()));
+            oldtime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            newevents += Scan(new MidiFileReader(song.getPath(), mapped));
+            newtime += System.nanoTime() - start;
+         }
+      }
+      System.out.println(String.format("%d songs, %d events per round",
+            songs.size(), events));
+      System.out.println("Load and scan:");
+      System.out.println(String.format(
+            "char[] reader: %d ms, %d events", oldtime / 1000000, oldevents));
+      System.out.println(String.format("%s reader: %d ms, %d events",
+            mapped ? "mapped" : "ByteBuffer", newtime / 1000000, newevents));
+
+      /* Decode only, from the same bytes in memory */
+      if (mapped)
+         return;
+      byte[][] bytes = new byte[songs.size()][];
+      char[][] chars = new char[songs.size()][];
+      for (int i = 0; i < songs.size(); i++)
+      {
+         bytes[i] = Files.readAllBytes(songs.get(i).toPath());
+         chars[i] = new char[bytes[i].length];
+         for (int j = 0; j < bytes[i].length; j++)
+         {
+            chars[i][j] = (char) (bytes[i][j] & 0xFF);
+         }
+      }
+      oldtime = newtime = 0;
+      oldevents = newevents = 0;
+      for (int round = 0; round < rounds; round++)
+      {
+         for (int i = 0; i < songs.size(); i++)
+         {
+            long start = System.nanoTime();
+            oldevents += Scan(new LegacyMidiFileReader(chars[i]));
+            oldtime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            newevents += Scan(new MidiFileReader(bytes[i]));
+            newtime += System.nanoTime() - start;
+         }
+      }
+      System.out.println("Scan only:");
+      System.out.println(String.format(
+            "char[] reader: %d ms, %d events", oldtime / 1000000, oldevents));
+      System.out.println(String.format(
+            "byte[] reader: %d ms, %d events", newtime / 1000000, newevents));
+   }
+}
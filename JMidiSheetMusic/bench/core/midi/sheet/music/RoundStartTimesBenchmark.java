@@ -0,0 +1,233 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @class RoundStartTimesBenchmark Command-line program that measures
+ *        MidiFile.RoundStartTimes, which merges the sorted start times of the
+ *        tracks, against the earlier version, which copied all start times
+ *        into one array and sorted it. Both versions run on clones of the same
+ *        tracks, and the results are compared note by note.
+ * 
+ *        The songs used are the three bundled songs with the most notes, and a
+ *        synthetic song of 8 tracks with 1,000,000 notes in total.
+ * 
+ *        To run: java core.midi.sheet.music.RoundStartTimesBenchmark [songdir]
+ *        [rounds]. The song directory defaults to "songs".
+ */
+public class RoundStartTimesBenchmark
+{
+
+   /** RoundStartTimes before the tracks were merged, for comparison */
+   private static void SortRoundStartTimes(List<MidiTrack> tracks,
+         int millisec, TempoMap tempos)
+   {
+      int count = 0;
+      for (MidiTrack track : tracks)
+      {
+         count += track.getNoteTable().Count();
+      }
+      int[] starttimes = new int[count];
+      count = 0;
+      for (MidiTrack track : tracks)
+      {
+         NoteTable notes = track.getNoteTable();
+         for (int n = 0; n < notes.Count(); n++)
+         {
+            starttimes[count++] = notes.getStartTime(n);
+         }
+      }
+      Arrays.sort(starttimes);
+
+      long micros = millisec * 1000L;
+      for (int i = 0; i < count - 1; i++)
+      {
+         int interval = tempos.PulsesInInterval(starttimes[i], micros);
+         if (starttimes[i + 1] - starttimes[i] <= interval)
+         {
+            starttimes[i + 1] = starttimes[i];
+         }
+      }
+
+      for (MidiTrack track : tracks)
+      {
+         NoteTable notes = track.getNoteTable();
+         int i = 0;
+         for (int n = 0; n < notes.Count(); n++)
+         {
+            int start = notes.getStartTime(n);
+            int interval = tempos.PulsesInInterval(start, micros);
+            while (i < count && start - interval > starttimes[i])
+            {
+               i++;
+            }
+            if (i < count && start > starttimes[i]
+                  && start - starttimes[i] <= interval)
+            {
+               notes.setStartTime(n, starttimes[i]);
+            }
+         }
+         notes.Sort();
+      }
+   }
+
+   /** Return a Clone() of each track */
+   private static List<MidiTrack> CloneTracks(List<MidiTrack> tracks)
+   {
+      List<MidiTrack> result = new ArrayList<MidiTrack>();
+      for (MidiTrack track : tracks)
+      {
+         result.add(track.Clone());
+      }
+      return result;
+   }
+
+   /** Return true if the tracks have the same notes */
+   private static boolean SameNotes(List<MidiTrack> x, List<MidiTrack> y)
+   {
+      for (int t = 0; t < x.size(); t++)
+      {
+         NoteTable a = x.get(t).getNoteTable();
+         NoteTable b = y.get(t).getNoteTable();
+         if (a.Count() != b.Count())
+            return false;
+         for (int i = 0; i < a.Count(); i++)
+         {
+            if (a.getStartTime(i) != b.getStartTime(i)
+                  || a.getNoteNumber(i) != b.getNoteNumber(i)
+                  || a.getDuration(i) != b.getDuration(i))
+               return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Create a song of the given number of tracks and notes. Each track plays
+    * chords whose notes start a few pulses apart, at 480 pulses per quarter
+    * note.
+    */
+   private static List<MidiTrack> SyntheticTracks(int numtracks, int numnotes)
+   {
+      Random random = new Random(1);
+      List<MidiTrack> tracks = new ArrayList<MidiTrack>();
+      for (int t = 0; t < numtracks; t++)
+      {
+         MidiTrack track = new MidiTrack(t);
+         NoteTable notes = track.getNoteTable();
+         int time = 0;
+         for (int i = 0; i < numnotes / numtracks; i++)
+         {
+            if (i % 4 == 0)
+               time += 120 * (1 + random.nextInt(4));
+            notes.Add(time + random.nextInt(8), t, 40 + random.nextInt(48),
+                  120);
+         }
+         notes.Sort();
+         tracks.add(track);
+      }
+      return tracks;
+   }
+
+   /**
+    * Time both versions on clones of the tracks, and print the best time of
+    * each, in milliseconds.
+    */
+   private static void Time(String name, List<MidiTrack> tracks,
+         TempoMap tempos, int rounds)
+   {
+      int notes = 0;
+      for (MidiTrack track : tracks)
+      {
+         notes += track.getNoteTable().Count();
+      }
+
+      List<MidiTrack> x = CloneTracks(tracks);
+      List<MidiTrack> y = CloneTracks(tracks);
+      SortRoundStartTimes(x, 40, tempos);
+      MidiFile.RoundStartTimes(y, 40, tempos);
+      boolean same = SameNotes(x, y);
+
+      double sorted = Double.MAX_VALUE, merged = Double.MAX_VALUE;
+      for (int round = 0; round < rounds; round++)
+      {
+         x = CloneTracks(tracks);
+         long start = System.nanoTime();
+         SortRoundStartTimes(x, 40, tempos);
+         sorted = Math.min(sorted, (System.nanoTime() - start) / 1e6);
+
+         y = CloneTracks(tracks);
+         start = System.nanoTime();
+         MidiFile.RoundStartTimes(y, 40, tempos);
+         merged = Math.min(merged, (System.nanoTime() - start) / 1e6);
+      }
+      System.out.println(String.format(
+            "%-50s %8d notes  sort %8.3f ms  merge %8.3f ms  %s", name,
+            notes, sorted, merged, same ? "same" : "DIFFERENT"));
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      File dir = new File(args.length > 0 ? args[0] : "songs");
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+      File[] files = dir.listFiles();
+      if (files == null)
+      {
+         System.out.println("Usage: RoundStartTimesBenchmark [songdir] [rounds]");
+         return;
+      }
+
+      /* Find the three songs with the most notes */
+      List<MidiFile> songs = new ArrayList<MidiFile>();
+      List<Integer> sizes = new ArrayList<Integer>();
+      for (File song : files)
+      {
+         if (!song.getName().toLowerCase().endsWith(".mid"))
+            continue;
+         MidiFile midifile = new MidiFile(song.getPath());
+         int notes = 0;
+         for (MidiTrack track : midifile.getTracks())
+         {
+            notes += track.getNoteTable().Count();
+         }
+         int i = 0;
+         while (i < sizes.size() && sizes.get(i) >= notes)
+            i++;
+         songs.add(i, midifile);
+         sizes.add(i, notes);
+      }
+
+      /* Warm up both versions, then time them */
+      for (int i = 0; i < Math.min(3, songs.size()); i++)
+      {
+         MidiFile midifile = songs.get(i);
+         Time(new File(midifile.getFileName()).getName(),
+               midifile.getTracks(), midifile.getTempoMap(), rounds);
+      }
+      for (int i = 0; i < Math.min(3, songs.size()); i++)
+      {
+         MidiFile midifile = songs.get(i);
+         Time(new File(midifile.getFileName()).getName(),
+               midifile.getTracks(), midifile.getTempoMap(), rounds);
+      }
+      Time("synthetic", SyntheticTracks(8, 1000000), new TempoMap(500000,
+            480), Math.max(3, rounds / 10));
+   }
+}
@@ -0,0 +1,6 @@
+package core.midi.sheet.music;
+
+/** The accidentals in sheet music: sharp, flat, natural, or none */
+public enum Accid {
+    None, Sharp, Flat, Natural
+};
@@ -0,0 +1,187 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+/**
+ * @class Autocorrelation Computes the autocorrelation of a histogram, the sum
+ *        over i of h[i] * h[i+lag], for every lag from 0 to maxlag. MidiFile
+ *        uses it on a histogram of note onsets to find the lags at which the
+ *        music repeats, which are the likely measure lengths.
+ * 
+ *        Note onsets are sparse (most bins are empty), so the direct sum only
+ *        visits the non-empty bins, in O(nonzero * maxlag) time. When that
+ *        would cost more, a Fourier transform is used instead: the
+ *        autocorrelation is the inverse transform of |H|^2, which takes
+ *        O(N log N) time however large maxlag is. The results agree up to
+ *        rounding.
+ */
+class Autocorrelation
+{
+   /**
+    * The cost of a Fourier transform of size n is taken to be
+    * TransformCost * n * log2(n) multiply-adds of the direct sum. This was
+    * measured: the direct sum does about 1 multiply-add per nanosecond, a
+    * transform about 1 butterfly per 10 nanoseconds, and there are two
+    * transforms.
+    */
+   private static final int TransformCost = 20;
+
+   /** Return the autocorrelation of h, for lags 0 to maxlag */
+   static double[] Compute(int[] h, int maxlag)
+   {
+      maxlag = Math.max(0, Math.min(maxlag, h.length - 1));
+      int nonzero = 0;
+      for (int i = 0; i < h.length; i++)
+      {
+         if (h[i] != 0)
+            nonzero++;
+      }
+      int n = TransformSize(h.length, maxlag);
+      long direct = (long) nonzero * (maxlag + 1);
+      long transform = (long) TransformCost * n * Integer.numberOfTrailingZeros(n);
+      if (direct <= transform)
+         return Direct(h, maxlag);
+      else
+         return Transform(h, maxlag);
+   }
+
+   /** Return the autocorrelation of h, summed over the non-empty bins */
+   static double[] Direct(int[] h, int maxlag)
+   {
+      long[] sums = new long[maxlag + 1];
+      for (int i = 0; i < h.length; i++)
+      {
+         int value = h[i];
+         if (value == 0)
+            continue;
+         int last = Math.min(maxlag, h.length - 1 - i);
+         for (int lag = 0; lag <= last; lag++)
+         {
+            sums[lag] += (long) value * h[i + lag];
+         }
+      }
+      double[] result = new double[maxlag + 1];
+      for (int lag = 0; lag <= maxlag; lag++)
+      {
+         result[lag] = sums[lag];
+      }
+      return result;
+   }
+
+   /**
+    * Return the size of the Fourier transform for the given histogram
+    * length and lags: a power of two, padded with at least maxlag zeros so
+    * the circular correlation of the transform doesn't wrap around.
+    */
+   private static int TransformSize(int length, int maxlag)
+   {
+      int n = 1;
+      while (n < length + maxlag + 1)
+      {
+         n <<= 1;
+      }
+      return n;
+   }
+
+   /** Return the autocorrelation of h, using a Fourier transform */
+   static double[] Transform(int[] h, int maxlag)
+   {
+      int n = TransformSize(h.length, maxlag);
+      double[] re = new double[n];
+      double[] im = new double[n];
+      for (int i = 0; i < h.length; i++)
+      {
+         re[i] = h[i];
+      }
+
+      FFT(re, im, false);
+      for (int i = 0; i < n; i++)
+      {
+         re[i] = re[i] * re[i] + im[i] * im[i];
+         im[i] = 0;
+      }
+      FFT(re, im, true);
+
+      double[] result = new double[maxlag + 1];
+      for (int lag = 0; lag <= maxlag; lag++)
+      {
+         result[lag] = Math.max(0, re[lag] / n);
+      }
+      return result;
+   }
+
+   /**
+    * Replace (re, im) by its discrete Fourier transform, or by its inverse
+    * (without the 1/n factor). The length must be a power of two. This is
+    * the iterative radix-2 Cooley-Tukey algorithm.
+    */
+   private static void FFT(double[] re, double[] im, boolean inverse)
+   {
+      int n = re.length;
+
+      /* Put the values in bit-reversed order */
+      for (int i = 1, j = 0; i < n; i++)
+      {
+         int bit = n >> 1;
+         for (; (j & bit) != 0; bit >>= 1)
+         {
+            j ^= bit;
+         }
+         j ^= bit;
+         if (i < j)
+         {
+            double t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+         }
+      }
+
+      /* The twiddle factors, e^(-2 pi i k/n), computed once so that rounding
+       * errors don't build up over the stages.
+       */
+      int half = n >> 1;
+      double[] cos = new double[half];
+      double[] sin = new double[half];
+      for (int k = 0; k < half; k++)
+      {
+         cos[k] = Math.cos(2 * Math.PI * k / n);
+         sin[k] = (inverse ? 1 : -1) * Math.sin(2 * Math.PI * k / n);
+      }
+
+      for (int len = 2; len <= n; len <<= 1)
+      {
+         int stride = n / len;
+         int middle = len >> 1;
+         for (int start = 0; start < n; start += len)
+         {
+            for (int k = 0; k < middle; k++)
+            {
+               double wre = cos[k * stride];
+               double wim = sin[k * stride];
+               int a = start + k;
+               int b = a + middle;
+               double xre = re[b] * wre - im[b] * wim;
+               double xim = re[b] * wim + im[b] * wre;
+               re[b] = re[a] - xre;
+               im[b] = im[a] - xim;
+               re[a] += xre;
+               im[a] += xim;
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,298 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.Arrays;
+
+/**
+ * @class HighLowNotes The HighLowNotes finds, for each note of a sorted
+ *        NoteTable, the highest and lowest notes near it. SplitTrack uses
+ *        these to decide whether a note goes to the top or bottom staff.
+ * 
+ *        For the note at index i, with start time s and end time e:
+ * 
+ *        - getHigh()/getLow() are the highest/lowest of the note itself and
+ *        the notes that overlap the interval from s to min(e, s + measurelen),
+ *        and that start no more than one measure before s.
+ * 
+ *        - getHighExact()/getLowExact() are the highest/lowest of the notes
+ *        that start exactly at s.
+ * 
+ *        The notes must be found in order, by calling Find() with increasing
+ *        indexes. The notes that started before s, and are still sounding, are
+ *        kept as counts per note number, so their highest and lowest number
+ *        are found from a 128-bit mask. The notes that start at or after s are
+ *        a range of indexes, and their highest and lowest number come from a
+ *        segment tree. Each Find() then takes O(log N) time, instead of a scan
+ *        over every note in the window.
+ */
+class HighLowNotes
+{
+   private NoteTable notes;
+   /** The notes, sorted by start time */
+   private int measurelen;
+   /** The length of a measure, in pulses */
+   private int count;
+   /** The number of notes */
+
+   private int[] maxtree;
+   /** Segment tree of the highest note number in each range of indexes */
+   private int[] mintree;
+   /** Segment tree of the lowest note number in each range of indexes */
+
+   private int[] active;
+   /** The number of sounding notes with each note number */
+   private long[] mask;
+   /** Bit n is set when active[n] > 0 */
+   private int[] heap;
+   /** The sounding notes, as a heap ordered by expire time */
+   private int heapsize;
+   /** The number of notes in the heap */
+   private int added;
+   /** The notes before this index have been added to the sounding notes */
+
+   private int exactStart;
+   /** The start time that highExact and lowExact were found for */
+   private int high, low, highExact, lowExact;
+   /** The results of the last Find() */
+
+   /** Create a HighLowNotes for the given notes, sorted by start time */
+   HighLowNotes(NoteTable notes, int measurelen)
+   {
+      this.notes = notes;
+      this.measurelen = measurelen;
+      count = notes.Count();
+
+      maxtree = new int[2 * count];
+      mintree = new int[2 * count];
+      for (int i = 0; i < count; i++)
+      {
+         maxtree[count + i] = notes.getNoteNumber(i);
+         mintree[count + i] = notes.getNoteNumber(i);
+      }
+      for (int i = count - 1; i > 0; i--)
+      {
+         maxtree[i] = Math.max(maxtree[2 * i], maxtree[2 * i + 1]);
+         mintree[i] = Math.min(mintree[2 * i], mintree[2 * i + 1]);
+      }
+
+      active = new int[128];
+      mask = new long[2];
+      heap = new int[16];
+      heapsize = 0;
+      added = 0;
+      exactStart = -1;
+   }
+
+   /** Return the highest note near the last note found */
+   int getHigh()
+   {
+      return high;
+   }
+
+   /** Return the lowest note near the last note found */
+   int getLow()
+   {
+      return low;
+   }
+
+   /** Return the highest note that starts with the last note found */
+   int getHighExact()
+   {
+      return highExact;
+   }
+
+   /** Return the lowest note that starts with the last note found */
+   int getLowExact()
+   {
+      return lowExact;
+   }
+
+   /**
+    * Find the high and low notes for note i. The index must be no smaller
+    * than the index given to the previous call.
+    */
+   void Find(int i)
+   {
+      int starttime = notes.getStartTime(i);
+      int endtime = notes.getEndTime(i);
+      if (starttime + measurelen < endtime)
+      {
+         endtime = starttime + measurelen;
+      }
+
+      /* The notes that started before this note, and still sound at its
+       * start time (but for no more than a measure).
+       */
+      while (added < count && notes.getStartTime(added) < starttime)
+      {
+         AddActive(added);
+         added++;
+      }
+      while (heapsize > 0 && Expires(heap[0]) < starttime)
+      {
+         RemoveActive();
+      }
+
+      int number = notes.getNoteNumber(i);
+      high = low = number;
+      if (mask[0] != 0 || mask[1] != 0)
+      {
+         high = Math.max(high, HighestActive());
+         low = Math.min(low, LowestActive());
+      }
+
+      /* The notes that start from this note's start time up to its end
+       * time. These are the indexes from 'added' up to the first note
+       * that starts at or after the end time.
+       */
+      int last = FirstStartingAt(endtime, added);
+      if (added < last)
+      {
+         high = Math.max(high, RangeMax(added, last));
+         low = Math.min(low, RangeMin(added, last));
+      }
+
+      /* The notes that start exactly at this start time */
+      if (starttime != exactStart)
+      {
+         exactStart = starttime;
+         highExact = lowExact = number;
+         for (int j = added; j < count && notes.getStartTime(j) == starttime; j++)
+         {
+            highExact = Math.max(highExact, notes.getNoteNumber(j));
+            lowExact = Math.min(lowExact, notes.getNoteNumber(j));
+         }
+      }
+   }
+
+   /**
+    * Return the last start time at which note i still counts: it must not
+    * have ended, and must have started within a measure.
+    */
+   private int Expires(int i)
+   {
+      return Math.min(notes.getEndTime(i), notes.getStartTime(i) + measurelen);
+   }
+
+   /** Return the index of the first note, from 'from' on, starting at or after time */
+   private int FirstStartingAt(int time, int from)
+   {
+      int lo = from, hi = count;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (notes.getStartTime(mid) < time)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }
+
+   /** Return the highest note number with index from start to end-1 */
+   private int RangeMax(int start, int end)
+   {
+      int result = 0;
+      for (start += count, end += count; start < end; start >>= 1, end >>= 1)
+      {
+         if ((start & 1) != 0)
+            result = Math.max(result, maxtree[start++]);
+         if ((end & 1) != 0)
+            result = Math.max(result, maxtree[--end]);
+      }
+      return result;
+   }
+
+   /** Return the lowest note number with index from start to end-1 */
+   private int RangeMin(int start, int end)
+   {
+      int result = 127;
+      for (start += count, end += count; start < end; start >>= 1, end >>= 1)
+      {
+         if ((start & 1) != 0)
+            result = Math.min(result, mintree[start++]);
+         if ((end & 1) != 0)
+            result = Math.min(result, mintree[--end]);
+      }
+      return result;
+   }
+
+   /** Add note i to the sounding notes */
+   private void AddActive(int i)
+   {
+      int number = notes.getNoteNumber(i) & 0x7F;
+      if (active[number]++ == 0)
+      {
+         mask[number >> 6] |= 1L << (number & 63);
+      }
+
+      if (heapsize == heap.length)
+      {
+         heap = Arrays.copyOf(heap, heapsize * 2);
+      }
+      int expires = Expires(i);
+      int k = heapsize++;
+      while (k > 0 && Expires(heap[(k - 1) / 2]) > expires)
+      {
+         heap[k] = heap[(k - 1) / 2];
+         k = (k - 1) / 2;
+      }
+      heap[k] = i;
+   }
+
+   /** Remove the sounding note that expires first */
+   private void RemoveActive()
+   {
+      int number = notes.getNoteNumber(heap[0]) & 0x7F;
+      if (--active[number] == 0)
+      {
+         mask[number >> 6] &= ~(1L << (number & 63));
+      }
+
+      int last = heap[--heapsize];
+      int expires = Expires(last);
+      int k = 0;
+      while (true)
+      {
+         int child = 2 * k + 1;
+         if (child >= heapsize)
+            break;
+         if (child + 1 < heapsize
+               && Expires(heap[child + 1]) < Expires(heap[child]))
+            child++;
+         if (expires <= Expires(heap[child]))
+            break;
+         heap[k] = heap[child];
+         k = child;
+      }
+      heap[k] = last;
+   }
+
+   /** Return the highest note number of the sounding notes */
+   private int HighestActive()
+   {
+      if (mask[1] != 0)
+         return 127 - Long.numberOfLeadingZeros(mask[1]);
+      return 63 - Long.numberOfLeadingZeros(mask[0]);
+   }
+
+   /** Return the lowest note number of the sounding notes */
+   private int LowestActive()
+   {
+      if (mask[0] != 0)
+         return Long.numberOfTrailingZeros(mask[0]);
+      return 64 + Long.numberOfTrailingZeros(mask[1]);
+   }
+}
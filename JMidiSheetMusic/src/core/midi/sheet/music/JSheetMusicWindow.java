@@ -21,6 +21,8 @@ import java.awt.GraphicsEnvironment;
 import java.awt.Rectangle;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 
 import javax.swing.Box;
 import javax.swing.Icon;
@@ -52,6 +54,9 @@ import javax.swing.JScrollPane;
  *   Save As Images
  *     Save the sheet music as images (one per page)
  *
+ *   Save As Midi
+ *     Save the song, with the current sound options, as a compact midi file.
+ *
  *   Print Preview 
  *     Create a PrintPreview dialog and generate a preview of the SheetMusic.
  *     The SheetMusic.DoPrint() method handles the PrintPage callback function.
@@ -140,6 +145,7 @@ import javax.swing.JScrollPane;
 public class JSheetMusicWindow extends JDialog
 {
    MidiFile midifile;         /* The MIDI file to display */
+   MidiFileCache cache;       /* The parsed MIDI files opened before */
    SheetMusic sheetmusic;     /* The Control which displays the sheet music */
    JScrollPane scrollView;          /* The Control for scrolling the sheetmusic */
    MidiPlayer player;         /* The top panel for playing the music */
@@ -149,6 +155,9 @@ public class JSheetMusicWindow extends JDialog
    int currentpage;           /* The current page we are printing */
    float zoom;                /* The current zoom level (1.0 == 100%) */
 
+   /* The number of guessed measure lengths shown in the Measure Length menu */
+   static final int MaxMeasureLengths = 5;
+
    /* Color options */
    NoteColorDialog colordialog;
 
@@ -168,6 +177,7 @@ public class JSheetMusicWindow extends JDialog
    JMenuItem openMenu;
    JMenuItem openSampleSongMenu;
    JMenuItem saveMenu;
+   JMenuItem saveMidiMenu;
    JMenuItem closeMenu;
    JMenuItem previewMenu;
    JMenuItem printMenu;
@@ -209,6 +219,8 @@ public class JSheetMusicWindow extends JDialog
    public JSheetMusicWindow() {
 
        String Text = "Midi Sheet Music";
+       cache = new MidiFileCache(new File(System.getProperty("user.home"),
+                                          ".jmidisheetmusic/cache"));
        //Icon Icon = new Icon(GetType(), "NotePair.ico");
        getContentPane().setBackground(Color.GRAY);
        int screenwidth = 0;
@@ -484,6 +496,9 @@ public class JSheetMusicWindow extends JDialog
                             new EventHandler(SaveImages),
                             Shortcut.CtrlS);
 
+       saveMidiMenu = new JMenuItem("Save As &Midi...", 
+                            new EventHandler(SaveMidi));
+
        previewMenu = new JMenuItem("Print Pre&view...", 
                               new EventHandler(PrintPreview));
 
@@ -497,6 +512,7 @@ public class JSheetMusicWindow extends JDialog
        filemenu.MenuItems.Add(openSampleSongMenu);
        filemenu.MenuItems.Add(closeMenu);
        filemenu.MenuItems.Add(saveMenu);
+       filemenu.MenuItems.Add(saveMidiMenu);
        filemenu.MenuItems.Add("-");
        filemenu.MenuItems.Add(previewMenu);
        filemenu.MenuItems.Add(printMenu);
@@ -833,9 +849,9 @@ public class JSheetMusicWindow extends JDialog
 
    /** Create the Measure Length sub-menu.
     * The method MidiFile.GuessMeasureLength guesses possible values for the
-    * measure length (in pulses). Create a sub-menu for each possible measure
-    * length.  The Menu.Tag field contains the measure length (in pulses) for
-    * each menu item.
+    * measure length (in pulses), best first. Create a sub-menu for each of
+    * the best few measure lengths.  The Menu.Tag field contains the measure
+    * length (in pulses) for each menu item.
     */
    void CreateMeasureLengthMenu() {
        JMenuItem menu;
@@ -847,7 +863,10 @@ public class JSheetMusicWindow extends JDialog
        menu.Tag = midifile.Time.Measure;
        measureMenu.MenuItems.Add(menu);
        measureMenu.MenuItems.Add("-");
-       List<int> lengths = midifile.GuessMeasureLength();
+       List<Integer> lengths = midifile.GuessMeasureLength();
+       if (lengths.size() > MaxMeasureLengths) {
+           lengths = lengths.subList(0, MaxMeasureLengths);
+       }
        for (int len : lengths) {
            menu = new JMenuItem(len + " pulses ", new EventHandler(MeasureLength));
            menu.RadioCheck = true;
@@ -1012,7 +1031,7 @@ public class JSheetMusicWindow extends JDialog
    public void OpenMidiFile(String filename) {
 
        try {
-           midifile = new MidiFile(filename);
+           midifile = cache.Open(filename);
            DisableMenus();
            EnableMenus();
            String displayName = Path.GetFileName(filename);
@@ -1084,7 +1103,7 @@ public class JSheetMusicWindow extends JDialog
            return;
        }
        /* Stop the player so that no notes are shaded */
-       player.Stop(null, null);
+       player.Stop();
 
        /* We can only save sheet music : 'vertical scrolling' view */
        ScrollVertically(null, null);
@@ -1134,6 +1153,52 @@ public class JSheetMusicWindow extends JDialog
 
 
 
+   /** The callback function for the "Save As Midi" menu.
+    * When invoked this will save the song as a midi file, with the
+    * current options (tempo, transpose, instruments, tracks) applied.
+    * The file uses the compact encoding (see MidiOptions.compactMidi),
+    * and the number of bytes it saved is shown once the file is written.
+    */
+   void SaveMidi(object obj, EventArgs args) {
+       if (midifile == null) {
+           return;
+       }
+       SaveFileDialog dialog = new SaveFileDialog();
+       dialog.ShowHelp = true;
+       dialog.CreatePrompt = false;
+       dialog.OverwritePrompt = true;
+       dialog.DefaultExt = "mid";
+       dialog.Filter="Midi Files (*.mid)|*.mid";
+
+       /* The initial filename in the dialog is the midi filename */
+       dialog.FileName = midifile.FileName;
+
+       if (dialog.ShowDialog() == DialogResult.OK) {
+           String filename = dialog.FileName;
+           MidiOptions options = GetMidiOptions();
+           options.compactMidi = true;
+           MidiFileWriter writer = midifile.Encode(options);
+           try {
+               writer.WriteTo(filename);
+               String message = "";
+               message += "Saved " + writer.GetOffset() + " bytes to " + filename;
+               message += ", " + writer.GetSavedBytes() + " bytes less than without the compact encoding.";
+               MessageBox.Show(message, "Save As Midi", 
+                               MessageBoxButtons.OK, MessageBoxIcon.Information);
+           }
+           catch (IOException e) {
+               String message = "";
+               message += "MidiSheetMusic was unable to save to file " + 
+                           filename;
+               message += " because:\n" + e.getMessage() + "\n";
+
+               MessageBox.Show(message, "Error Saving File", 
+                               MessageBoxButtons.OK, MessageBoxIcon.Error);
+           }
+       }
+   }
+
+
    /** The callback function for the "Print Preview" menu.
     * When invoked, this will spawn a PrintPreview dialog.
     * The dialog will then invoke the PrintPage() event
@@ -1141,7 +1206,7 @@ public class JSheetMusicWindow extends JDialog
     */
    void PrintPreview(object obj, EventArgs args) {
        /* Stop the player so that no notes are shaded */
-       player.Stop(null, null);
+       player.Stop();
 
        /* We can only print sheet music : 'vertical scrolling' view */
        ScrollVertically(null, null);
@@ -1160,7 +1225,7 @@ public class JSheetMusicWindow extends JDialog
     */
    void Print(object obj, EventArgs args) {
        /* Stop the player so that no notes are shaded */
-       player.Stop(null, null);
+       player.Stop();
 
        /* We can only print sheet music : 'vertical scrolling' view */
        ScrollVertically(null, null);
@@ -1208,8 +1273,8 @@ public class JSheetMusicWindow extends JDialog
     * Exit the application.
     */
    void Exit(object obj, EventArgs args) {
-       player.Stop(null, null);
-       player.DeleteSoundFile();
+       player.Stop();
+       player.Close();
        this.Dispose();
        Application.Exit();
    }
@@ -1655,6 +1720,7 @@ public class JSheetMusicWindow extends JDialog
 
        closeMenu.Enabled = true;
        saveMenu.Enabled = true;
+       saveMidiMenu.Enabled = true;
        previewMenu.Enabled = true;
        printMenu.Enabled = true;
 
@@ -1677,6 +1743,7 @@ public class JSheetMusicWindow extends JDialog
 
        closeMenu.Enabled = false;
        saveMenu.Enabled = false;
+       saveMidiMenu.Enabled = false;
        previewMenu.Enabled = false;
        printMenu.Enabled = false;
    }
@@ -58,13 +58,48 @@ public class MidiEvent implements Comparable<MidiEvent>
    public int Metalength;
    /** The metaevent length */
    public char[] Value;
-
    /** The raw int value, for Sysex and meta events */
+   private MidiEventList source;
+   /** The event list holding the Value, until it is copied out */
+   private int sourceindex;
+
+   /** The index of this event in source */
 
    public MidiEvent()
    {
    }
 
+   /**
+    * Use the sysex/meta data of event i of the given list as the Value. The
+    * data is only copied out when getValue() or getText() is called.
+    */
+   void SetPayload(MidiEventList list, int i)
+   {
+      source = list;
+      sourceindex = i;
+      Value = null;
+   }
+
+   /** Return the raw value, for Sysex and meta events */
+   public char[] getValue()
+   {
+      if (Value == null && source != null)
+      {
+         Value = source.getValue(sourceindex);
+         source = null;
+      }
+      return Value;
+   }
+
+   /** Return the raw value as text, for text and lyric meta events */
+   public String getText()
+   {
+      char[] value = getValue();
+      if (value == null)
+         return "";
+      return new String(value);
+   }
+
    /** Return a copy of this event */
    public MidiEvent Clone()
    {
@@ -88,6 +123,8 @@ public class MidiEvent implements Comparable<MidiEvent>
       mevent.Metaevent = Metaevent;
       mevent.Metalength = Metalength;
       mevent.Value = Value;
+      mevent.source = source;
+      mevent.sourceindex = sourceindex;
       return mevent;
    }
 
@@ -0,0 +1,458 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * @class MidiEventCursor The MidiEventCursor walks the events of one MTrk
+ *        chunk straight from a MidiFileReader, one event at a time. Each call
+ *        to Next() decodes the next event into a MidiEvent supplied by the
+ *        caller, so a whole track can be scanned with a single MidiEvent and
+ *        no allocation per event.
+ * 
+ *        A typical single-pass analysis looks like:
+ * 
+ *        MidiEventCursor cursor = new MidiEventCursor(file); MidiEvent mevent
+ *        = new MidiEvent(); while (cursor.Next(mevent)) { ... }
+ * 
+ *        The sysex/meta data is not copied into mevent.Value. After Next()
+ *        returns, the reader is positioned at the start of the data (see
+ *        GetPayloadOffset()), and the caller may read it from the reader, or
+ *        with ReadValue(). Any data left unread is skipped by the following
+ *        call to Next(). Tempo and time signature meta events are decoded
+ *        into mevent.Tempo, mevent.Numerator and mevent.Denominator.
+ * 
+ *        GetData1() and GetData2() return the raw data bytes of the current
+ *        event, in the same layout as the MidiEventList columns.
+ * 
+ *        The status byte of each event is looked up in a table of event kinds,
+ *        instead of going through a chain of range checks. For an in-memory
+ *        reader, channel events are decoded straight from the reader's
+ *        buffer, and the reader is then moved past the event, so the reader
+ *        offset is always at the end of the current event. The fields of
+ *        mevent that don't belong to the event are cleared on every call.
+ */
+public class MidiEventCursor
+{
+   private MidiFileReader file;
+   /** The reader holding the track data */
+   private int trackend;
+   /** The file offset where the track data ends */
+   private int starttime;
+   /** The absolute time of the current event */
+   private int runningstatus;
+   /** The last channel event code seen, for running status */
+   private int data1;
+   /** The first data byte, or the metaevent code */
+   private int data2;
+   /** The second data byte, or the tempo */
+   private int payloadoffset;
+   /** The file offset of the current sysex/meta data */
+   private int payloadend;
+   /** The file offset where the current sysex/meta data ends */
+   private ByteBuffer buf;
+   /** The data of an in-memory reader, or null for a stream reader */
+   private int buflimit;
+
+   /** The limit of buf */
+
+   /* The kinds of event a status byte can start */
+   private static final int KindUnknown = 0;
+   private static final int KindNote = 1;
+   private static final int KindKeyPressure = 2;
+   private static final int KindControlChange = 3;
+   private static final int KindProgramChange = 4;
+   private static final int KindChannelPressure = 5;
+   private static final int KindPitchBend = 6;
+   private static final int KindSysex = 7;
+   private static final int KindMeta = 8;
+
+   /** The kind of event for each status byte */
+   private static final byte[] Kinds = new byte[256];
+
+   /** The number of data bytes for each kind of channel event */
+   private static final int[] DataLengths = { 0, 2, 2, 2, 1, 1, 2, 0, 0 };
+
+   static
+   {
+      for (int channel = 0; channel < 16; channel++)
+      {
+         Kinds[MidiFile.EventNoteOff + channel] = KindNote;
+         Kinds[MidiFile.EventNoteOn + channel] = KindNote;
+         Kinds[MidiFile.EventKeyPressure + channel] = KindKeyPressure;
+         Kinds[MidiFile.EventControlChange + channel] = KindControlChange;
+         Kinds[MidiFile.EventProgramChange + channel] = KindProgramChange;
+         Kinds[MidiFile.EventChannelPressure + channel] = KindChannelPressure;
+         Kinds[MidiFile.EventPitchBend + channel] = KindPitchBend;
+      }
+      Kinds[MidiFile.SysexEvent1] = KindSysex;
+      Kinds[MidiFile.SysexEvent2] = KindSysex;
+      Kinds[MidiFile.MetaEvent] = KindMeta;
+   }
+
+   /**
+    * Create a cursor over the track starting at the current offset of the
+    * reader. The offset should be at the start of the MTrk header.
+    * 
+    * @throws MidiFileException
+    */
+   public MidiEventCursor(MidiFileReader file) throws MidiFileException
+   {
+      this.file = file;
+      String id = file.ReadAscii(4);
+      if (!id.equals("MTrk"))
+      {
+         throw new MidiFileException("Bad MTrk header", file.GetOffset() - 4);
+      }
+      int tracklen = file.ReadInt();
+      Start(tracklen);
+   }
+
+   /**
+    * Create a cursor over a track whose MTrk header has already been read.
+    * The offset of the reader should be at the start of the track data.
+    */
+   public MidiEventCursor(MidiFileReader file, int tracklen)
+   {
+      this.file = file;
+      Start(tracklen);
+   }
+
+   private void Start(int tracklen)
+   {
+      trackend = tracklen + file.GetOffset();
+      starttime = 0;
+      runningstatus = 0;
+      payloadoffset = file.GetOffset();
+      payloadend = payloadoffset;
+      buf = file.GetBuffer();
+      buflimit = (buf == null) ? 0 : buf.limit();
+   }
+
+   /**
+    * Decode the next event of the track into mevent. Return false at the end
+    * of the track, or if the file is truncated before the next event.
+    * 
+    * @throws MidiFileException
+    */
+   public boolean Next(MidiEvent mevent) throws MidiFileException
+   {
+      /* Channel events are decoded straight from the buffer when the longest
+       * one (a 4 byte delta time, an event code and two data bytes) fits.
+       * This check is kept short, so the JIT can inline it into the
+       * caller's loop.
+       */
+      int pos = file.GetOffset();
+      if (pos >= payloadend && pos < trackend && pos + 7 <= buflimit)
+      {
+         int next = NextChannelEvent(mevent, pos);
+         if (next >= 0)
+         {
+            file.Seek(next);
+            return true;
+         }
+      }
+      return NextEvent(mevent);
+   }
+
+   /**
+    * Decode a channel event starting at the given file offset, directly from
+    * the buffer. Return the offset of the following event, or -1 (without
+    * moving on) if the event is not a channel event.
+    */
+   private int NextChannelEvent(MidiEvent mevent, int pos)
+   {
+      int b = buf.get(pos++);
+      int deltatime = b & 0x7F;
+      for (int i = 0; i < 3 && (b & 0x80) != 0; i++)
+      {
+         b = buf.get(pos++);
+         deltatime = (deltatime << 7) + (b & 0x7F);
+      }
+
+      /* Without a new event code, the last channel event code is used
+       * (running status). Sysex and meta events don't change it.
+       */
+      int status = buf.get(pos) & 0xFF;
+      boolean hasflag = (status >= MidiFile.EventNoteOff);
+      if (hasflag)
+      {
+         pos++;
+      }
+      else
+      {
+         status = runningstatus;
+      }
+      int kind = Kinds[status];
+      if (kind == KindUnknown || kind >= KindSysex)
+      {
+         return -1;
+      }
+
+      data1 = buf.get(pos++) & 0xFF;
+      data2 = 0;
+      if (DataLengths[kind] == 2)
+      {
+         data2 = buf.get(pos++) & 0xFF;
+      }
+      runningstatus = status;
+      starttime += deltatime;
+      SetChannelEvent(mevent, deltatime, hasflag, status, kind);
+      return pos;
+   }
+
+   /**
+    * Decode the next event through the reader.
+    * 
+    * @throws MidiFileException
+    */
+   private boolean NextEvent(MidiEvent mevent) throws MidiFileException
+   {
+      /* Skip the sysex/meta data the caller did not read */
+      if (file.GetOffset() < payloadend)
+      {
+         file.Skip(payloadend - file.GetOffset());
+      }
+      if (file.GetOffset() >= trackend)
+      {
+         return false;
+      }
+
+      // If the midi file is truncated here, we can still recover.
+      // Just stop at what we've parsed so far.
+
+      int deltatime;
+      int status;
+      try
+      {
+         deltatime = file.ReadVarlen();
+         status = file.Peek();
+      }
+      catch (MidiFileException e)
+      {
+         return false;
+      }
+      starttime += deltatime;
+
+      boolean hasflag = (status >= MidiFile.EventNoteOff);
+      if (hasflag)
+      {
+         file.ReadByte();
+      }
+      else
+      {
+         status = runningstatus;
+      }
+      int kind = Kinds[status];
+
+      if (kind == KindSysex || kind == KindMeta)
+      {
+         Clear(mevent);
+         mevent.DeltaTime = deltatime;
+         mevent.StartTime = starttime;
+         mevent.HasEventflag = hasflag;
+         mevent.EventFlag = status;
+         if (kind == KindSysex)
+         {
+            DecodeSysex(mevent);
+         }
+         else
+         {
+            DecodeMeta(mevent);
+         }
+         return true;
+      }
+      if (kind == KindUnknown)
+      {
+         throw new MidiFileException("Unknown event " + status,
+               file.GetOffset() - 1);
+      }
+
+      data1 = file.ReadByte();
+      data2 = 0;
+      if (DataLengths[kind] == 2)
+      {
+         data2 = file.ReadByte();
+      }
+      runningstatus = status;
+      SetChannelEvent(mevent, deltatime, hasflag, status, kind);
+      return true;
+   }
+
+   /** Store the channel event in data1/data2 into mevent */
+   private void SetChannelEvent(MidiEvent mevent, int deltatime,
+         boolean hasflag, int status, int kind)
+   {
+      Clear(mevent);
+      mevent.DeltaTime = deltatime;
+      mevent.StartTime = starttime;
+      mevent.HasEventflag = hasflag;
+      mevent.EventFlag = status & 0xF0;
+      mevent.Channel = status & 0x0F;
+
+      if (kind == KindNote)
+      {
+         mevent.Notenumber = data1;
+         mevent.Velocity = data2;
+         return;
+      }
+      switch (kind)
+      {
+      case KindKeyPressure:
+         mevent.Notenumber = data1;
+         mevent.KeyPressure = data2;
+         break;
+      case KindControlChange:
+         mevent.ControlNum = data1;
+         mevent.ControlValue = data2;
+         break;
+      case KindProgramChange:
+         mevent.Instrument = data1;
+         break;
+      case KindChannelPressure:
+         mevent.ChanPressure = data1;
+         break;
+      case KindPitchBend:
+         mevent.PitchBend = (data1 << 8) | data2;
+         break;
+      }
+   }
+
+   /** Reset the event fields of mevent */
+   private void Clear(MidiEvent mevent)
+   {
+      mevent.Channel = 0;
+      mevent.Notenumber = 0;
+      mevent.Velocity = 0;
+      mevent.Instrument = 0;
+      mevent.KeyPressure = 0;
+      mevent.ChanPressure = 0;
+      mevent.ControlNum = 0;
+      mevent.ControlValue = 0;
+      mevent.PitchBend = 0;
+      mevent.Numerator = 0;
+      mevent.Denominator = 0;
+      mevent.Tempo = 0;
+      mevent.Metaevent = 0;
+      mevent.Metalength = 0;
+      mevent.Value = null;
+   }
+
+   /**
+    * Decode a sysex event. The offset is just past the event code.
+    * 
+    * @throws MidiFileException
+    */
+   private void DecodeSysex(MidiEvent mevent) throws MidiFileException
+   {
+      data1 = 0;
+      data2 = 0;
+      mevent.Metalength = file.ReadVarlen();
+      payloadoffset = file.GetOffset();
+      payloadend = payloadoffset + mevent.Metalength;
+   }
+
+   /**
+    * Decode a meta event. The offset is just past the MetaEvent code.
+    * 
+    * @throws MidiFileException
+    */
+   private void DecodeMeta(MidiEvent mevent) throws MidiFileException
+   {
+      data1 = file.ReadByte();
+      data2 = 0;
+      int metalength = file.ReadVarlen();
+      mevent.Metaevent = data1;
+      mevent.Metalength = metalength;
+      payloadoffset = file.GetOffset();
+      payloadend = payloadoffset + metalength;
+
+      if (data1 == MidiFile.MetaEventTempo)
+      {
+         if (metalength != 3)
+         {
+            throw new MidiFileException("Meta Event Tempo len == "
+                  + metalength + " != 3", payloadend);
+         }
+         data2 = (file.Peek(0) << 16) | (file.Peek(1) << 8) | file.Peek(2);
+         mevent.Tempo = data2;
+      }
+      else if (data1 == MidiFile.MetaEventTimeSignature)
+      {
+         if (metalength < 2)
+         {
+            mevent.Denominator = 4;
+         }
+         else
+         {
+            mevent.Numerator = file.Peek(0);
+            mevent.Denominator = 1 << file.Peek(1);
+         }
+      }
+   }
+
+   /** Return the reader holding the track data */
+   public MidiFileReader GetReader()
+   {
+      return file;
+   }
+
+   /** Return the file offset where the track data ends */
+   public int GetTrackEnd()
+   {
+      return trackend;
+   }
+
+   /**
+    * Return the first data byte of the current event: the note number,
+    * controller number, program number, channel pressure, the high byte of a
+    * pitch bend, or the metaevent code.
+    */
+   public int GetData1()
+   {
+      return data1;
+   }
+
+   /**
+    * Return the second data byte of the current event: the velocity, key
+    * pressure, controller value, the low byte of a pitch bend, or the tempo of
+    * a tempo meta event.
+    */
+   public int GetData2()
+   {
+      return data2;
+   }
+
+   /** Return the file offset of the data of the current sysex/meta event */
+   public int GetPayloadOffset()
+   {
+      return payloadoffset;
+   }
+
+   /**
+    * Read and return the sysex/meta data of the current event. This must be
+    * called before anything else reads from the reader.
+    * 
+    * @throws MidiFileException
+    */
+   public char[] ReadValue() throws MidiFileException
+   {
+      if (file.GetOffset() != payloadoffset)
+      {
+         throw new IllegalStateException("The event data was already read");
+      }
+      return file.ReadBytes(payloadend - payloadoffset);
+   }
+}
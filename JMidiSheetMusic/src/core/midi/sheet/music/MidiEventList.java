@@ -0,0 +1,716 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @class MidiEventList The MidiEventList holds the raw Midi events of one
+ *        track, stored column by column in primitive arrays instead of one
+ *        MidiEvent object per event. Event i is described by:
+ * 
+ *        starttime[i] - The absolute time the event occurs. deltatime[i] - The
+ *        time between the previous event and this one. status[i] - The event
+ *        flag (EventNoteOn, EventControlChange, MetaEvent, ...) without the
+ *        channel. channel[i] - The channel, for channel events. data1[i] - The
+ *        first data byte: the note number, controller number, program number,
+ *        channel pressure, or the metaevent code for meta events. data2[i] -
+ *        The second data byte: the velocity, key pressure or controller value.
+ *        For pitch bends, data1/data2 hold the two bytes of the bend value. For
+ *        tempo meta events, data2 holds the tempo in microseconds.
+ *        payload[i], payloadlen[i] - The sysex or meta event data, as an offset
+ *        and length into the payload bytes shared by all events of the list.
+ * 
+ *        When the list is read from an in-memory MidiFileReader (a file read
+ *        into memory or a byte array), the payload bytes are the reader's own data, and
+ *        payload[i] is simply the file offset of the event data. Nothing is
+ *        copied until getValue(), getBytes() or getText() is called. When read
+ *        from a stream or a mapped file, the payload bytes are copied into a
+ *        buffer owned by the list.
+ * 
+ *        GetEvent() builds a MidiEvent for a single event, when one is needed.
+ */
+public class MidiEventList
+{
+   private int count;
+   /** The number of events */
+   private int[] starttime;
+   /** The absolute time of each event */
+   private int[] deltatime;
+   /** The time since the previous event */
+   private byte[] status;
+   /** The event flag, without the channel */
+   private byte[] channel;
+   /** The channel, for channel events */
+   private byte[] data1;
+   /** The first data byte, or the metaevent code */
+   private int[] data2;
+   /** The second data byte, or the tempo */
+   private int[] payload;
+   /** The offset of the sysex/meta data */
+   private int[] payloadlen;
+   /** The length of the sysex/meta data */
+   private ByteBuffer payloaddata;
+   /** The sysex/meta data of all events */
+   private byte[] owned;
+   /** The bytes of payloaddata, or null if payloaddata is the reader's data */
+   private int payloadsize;
+   /** The number of owned payload bytes used */
+   private boolean payloadshared;
+
+   /** True if the owned bytes are shared with another list */
+
+   /** Create an empty MidiEventList */
+   public MidiEventList()
+   {
+      this(16);
+   }
+
+   /** Create an empty MidiEventList with room for the given number of events */
+   public MidiEventList(int capacity)
+   {
+      if (capacity < 1)
+         capacity = 1;
+      starttime = new int[capacity];
+      deltatime = new int[capacity];
+      status = new byte[capacity];
+      channel = new byte[capacity];
+      data1 = new byte[capacity];
+      data2 = new int[capacity];
+      payload = new int[capacity];
+      payloadlen = new int[capacity];
+      owned = new byte[0];
+      payloaddata = ByteBuffer.wrap(owned);
+      payloadsize = 0;
+      payloadshared = false;
+   }
+
+   /**
+    * Create an empty MidiEventList for a track read from the given reader. If
+    * the reader holds all the file data in memory, the sysex/meta data of the
+    * events are slices of that data. If the file is mapped, they are copied,
+    * so that the list doesn't keep the mapping alive.
+    */
+   public MidiEventList(MidiFileReader file)
+   {
+      this(16);
+      ByteBuffer data = file.GetBuffer();
+      if (data != null && !file.IsMapped())
+      {
+         payloaddata = data;
+         owned = null;
+      }
+   }
+
+   /**
+    * Create an empty MidiEventList that shares the payload data of the given
+    * list. Events copied from that list with Add(list, index) keep pointing to
+    * the same payload bytes.
+    */
+   public MidiEventList(MidiEventList source, int capacity)
+   {
+      this(capacity);
+      payloaddata = source.payloaddata;
+      owned = source.owned;
+      payloadsize = source.payloadsize;
+      payloadshared = true;
+      source.payloadshared = true;
+   }
+
+   /**
+    * Create a MidiEventList from the data written by Write(), starting at the
+    * position of the buffer. The position is moved past the list. The
+    * sysex/meta data are copied into a buffer owned by the list, so that the
+    * list doesn't keep the whole buffer in memory.
+    */
+   MidiEventList(ByteBuffer in)
+   {
+      this(CheckCount(in));
+      count = in.getInt();
+      ReadColumn(in, starttime);
+      ReadColumn(in, deltatime);
+      in.get(status, 0, count);
+      in.get(channel, 0, count);
+      in.get(data1, 0, count);
+      ReadColumn(in, data2);
+      ReadColumn(in, payload);
+      ReadColumn(in, payloadlen);
+      int total = in.getInt();
+      if (total < 0 || total > in.remaining())
+      {
+         throw new BufferUnderflowException();
+      }
+      owned = new byte[total];
+      in.get(owned);
+      payloaddata = ByteBuffer.wrap(owned);
+      payloadsize = total;
+   }
+
+   /** Return the event count at the position of the buffer, if it fits */
+   private static int CheckCount(ByteBuffer in)
+   {
+      int n = in.getInt(in.position());
+      if (n < 0 || n > (in.remaining() - 8) / 23)
+      {
+         throw new BufferUnderflowException();
+      }
+      return n;
+   }
+
+   /** Read count ints from the buffer into the given column */
+   private void ReadColumn(ByteBuffer in, int[] column)
+   {
+      in.asIntBuffer().get(column, 0, count);
+      in.position(in.position() + 4 * count);
+   }
+
+   /** Return the number of bytes Write() needs for this list */
+   int SerializedSize()
+   {
+      int total = 0;
+      for (int i = 0; i < count; i++)
+      {
+         if (payload[i] >= 0)
+            total += payloadlen[i];
+      }
+      return 8 + count * 23 + total;
+   }
+
+   /**
+    * Write the events to the buffer, column by column, followed by the
+    * sysex/meta data of all events. Only the data still used by the events is
+    * written, so the offsets in the payload column are renumbered.
+    */
+   void Write(ByteBuffer out)
+   {
+      out.putInt(count);
+      out.asIntBuffer().put(starttime, 0, count);
+      out.position(out.position() + 4 * count);
+      out.asIntBuffer().put(deltatime, 0, count);
+      out.position(out.position() + 4 * count);
+      out.put(status, 0, count);
+      out.put(channel, 0, count);
+      out.put(data1, 0, count);
+      out.asIntBuffer().put(data2, 0, count);
+      out.position(out.position() + 4 * count);
+
+      int total = 0;
+      for (int i = 0; i < count; i++)
+      {
+         if (payload[i] < 0)
+         {
+            out.putInt(payload[i]);
+         }
+         else
+         {
+            out.putInt(total);
+            total += payloadlen[i];
+         }
+      }
+      out.asIntBuffer().put(payloadlen, 0, count);
+      out.position(out.position() + 4 * count);
+
+      out.putInt(total);
+      for (int i = 0; i < count; i++)
+      {
+         if (payload[i] < 0)
+            continue;
+         ByteBuffer slice = payloaddata.duplicate();
+         slice.limit(payload[i] + payloadlen[i]);
+         slice.position(payload[i]);
+         out.put(slice);
+      }
+   }
+
+   /** Return the number of events */
+   public int Count()
+   {
+      return count;
+   }
+
+   public int getStartTime(int i)
+   {
+      return starttime[i];
+   }
+
+   public void setStartTime(int i, int value)
+   {
+      starttime[i] = value;
+   }
+
+   public int getDeltaTime(int i)
+   {
+      return deltatime[i];
+   }
+
+   public void setDeltaTime(int i, int value)
+   {
+      deltatime[i] = value;
+   }
+
+   /** Return the event flag (EventNoteOn, MetaEvent, ...) of event i */
+   public int getEventFlag(int i)
+   {
+      return status[i] & 0xFF;
+   }
+
+   public int getChannel(int i)
+   {
+      return channel[i];
+   }
+
+   public int getData1(int i)
+   {
+      return data1[i] & 0xFF;
+   }
+
+   public void setData1(int i, int value)
+   {
+      data1[i] = (byte) value;
+   }
+
+   public int getData2(int i)
+   {
+      return data2[i];
+   }
+
+   /**
+    * Set data2 of event i. Setting the tempo of a tempo event detaches it
+    * from its stored data, so the data bytes follow the new tempo.
+    */
+   public void setData2(int i, int value)
+   {
+      data2[i] = value;
+      if (getMetaevent(i) == MidiFile.MetaEventTempo)
+      {
+         payload[i] = -1;
+         payloadlen[i] = 3;
+      }
+   }
+
+   /** Return the metaevent code, or -1 if event i is not a meta event */
+   public int getMetaevent(int i)
+   {
+      if ((status[i] & 0xFF) != MidiFile.MetaEvent)
+         return -1;
+      return data1[i] & 0xFF;
+   }
+
+   /** Return the length of the sysex/meta data of event i */
+   public int getMetalength(int i)
+   {
+      return payloadlen[i];
+   }
+
+   /** Return the tempo of a tempo meta event */
+   public int getTempo(int i)
+   {
+      return data2[i];
+   }
+
+   /** Return the pitch bend value of a pitch bend event */
+   public int getPitchBend(int i)
+   {
+      return ((data1[i] & 0xFF) << 8) | data2[i];
+   }
+
+   /** Return the numerator of a time signature meta event */
+   public int getNumerator(int i)
+   {
+      if (payloadlen[i] < 2)
+         return 0;
+      return getPayloadByte(i, 0);
+   }
+
+   /** Return the denominator of a time signature meta event */
+   public int getDenominator(int i)
+   {
+      if (payloadlen[i] < 2)
+         return 4;
+      return (int) Math.pow(2, getPayloadByte(i, 1));
+   }
+
+   /**
+    * Return byte j of the sysex/meta data of event i. Tempo events added with
+    * InsertTempoEvent have no stored data; their bytes come from the tempo.
+    */
+   public int getPayloadByte(int i, int j)
+   {
+      if (payload[i] < 0)
+         return (data2[i] >> (8 * (2 - j))) & 0xFF;
+      return payloaddata.get(payload[i] + j) & 0xFF;
+   }
+
+   /**
+    * Copy length bytes of the sysex/meta data of event i, starting at byte
+    * from, into dest[destoffset]
+    */
+   public void CopyPayload(int i, int from, char[] dest, int destoffset,
+         int length)
+   {
+      for (int j = 0; j < length; j++)
+      {
+         dest[destoffset + j] = (char) getPayloadByte(i, from + j);
+      }
+   }
+
+   /** Write the sysex/meta data of event i to the given writer */
+   void WritePayload(int i, MidiFileWriter out)
+   {
+      if (payload[i] < 0)
+      {
+         for (int j = 0; j < payloadlen[i]; j++)
+         {
+            out.WriteByte(getPayloadByte(i, j));
+         }
+         return;
+      }
+      ByteBuffer slice = payloaddata.duplicate();
+      slice.limit(payload[i] + payloadlen[i]);
+      slice.position(payload[i]);
+      out.WriteBytes(slice);
+   }
+
+   /** Return a copy of the sysex/meta data of event i */
+   public char[] getValue(int i)
+   {
+      char[] result = new char[payloadlen[i]];
+      CopyPayload(i, 0, result, 0, result.length);
+      return result;
+   }
+
+   /** Return a copy of the sysex/meta data of event i */
+   public byte[] getBytes(int i)
+   {
+      byte[] result = new byte[payloadlen[i]];
+      for (int j = 0; j < result.length; j++)
+      {
+         result[j] = (byte) getPayloadByte(i, j);
+      }
+      return result;
+   }
+
+   /** Return the text of a text, lyric or name meta event */
+   public String getText(int i)
+   {
+      return new String(getValue(i));
+   }
+
+   /** Make room for one more event, and return its index */
+   private int grow()
+   {
+      if (count == starttime.length)
+      {
+         int capacity = count * 2;
+         starttime = Arrays.copyOf(starttime, capacity);
+         deltatime = Arrays.copyOf(deltatime, capacity);
+         status = Arrays.copyOf(status, capacity);
+         channel = Arrays.copyOf(channel, capacity);
+         data1 = Arrays.copyOf(data1, capacity);
+         data2 = Arrays.copyOf(data2, capacity);
+         payload = Arrays.copyOf(payload, capacity);
+         payloadlen = Arrays.copyOf(payloadlen, capacity);
+      }
+      return count++;
+   }
+
+   /**
+    * Copy the payload slices of all events out of the reader's data, into
+    * bytes owned by this list. This is only needed when data that doesn't come
+    * from the reader is added.
+    */
+   private void ownPayload()
+   {
+      int total = 0;
+      for (int i = 0; i < count; i++)
+      {
+         total += payloadlen[i];
+      }
+      byte[] bytes = new byte[total + 64];
+      int offset = 0;
+      for (int i = 0; i < count; i++)
+      {
+         if (payload[i] < 0)
+            continue;
+         ByteBuffer slice = payloaddata.duplicate();
+         slice.position(payload[i]);
+         slice.get(bytes, offset, payloadlen[i]);
+         payload[i] = offset;
+         offset += payloadlen[i];
+      }
+      owned = bytes;
+      payloaddata = ByteBuffer.wrap(owned);
+      payloadsize = offset;
+      payloadshared = false;
+   }
+
+   /**
+    * Make room for the given number of owned payload bytes, and return the
+    * offset where they go
+    */
+   private int reservePayload(int length)
+   {
+      if (owned == null)
+      {
+         ownPayload();
+      }
+      if (payloadshared || payloadsize + length > owned.length)
+      {
+         int capacity = Math.max(owned.length * 2, payloadsize + length + 64);
+         owned = Arrays.copyOf(owned, capacity);
+         payloaddata = ByteBuffer.wrap(owned);
+         payloadshared = false;
+      }
+      int offset = payloadsize;
+      payloadsize += length;
+      return offset;
+   }
+
+   /** Append the given bytes to the payload data, and return their offset */
+   private int addPayload(char[] value)
+   {
+      int offset = reservePayload(value.length);
+      for (int j = 0; j < value.length; j++)
+      {
+         owned[offset + j] = (byte) value[j];
+      }
+      return offset;
+   }
+
+   /**
+    * Read length payload bytes from the file, and return their offset. If the
+    * payload data is the reader's data, the bytes are skipped, not copied.
+    */
+   private int readPayload(MidiFileReader file, int length)
+         throws MidiFileException
+   {
+      if (owned == null)
+      {
+         int offset = file.GetOffset();
+         file.Skip(length);
+         return offset;
+      }
+      int offset = reservePayload(length);
+      file.ReadBytes(owned, offset, length);
+      return offset;
+   }
+
+   /**
+    * Add a channel event (NoteOn, NoteOff, KeyPressure, ControlChange,
+    * ProgramChange, ChannelPressure, PitchBend). Return its index.
+    */
+   public int AddChannelEvent(int starttime, int deltatime, int eventflag,
+         int channel, int data1, int data2)
+   {
+      int i = grow();
+      this.starttime[i] = starttime;
+      this.deltatime[i] = deltatime;
+      this.status[i] = (byte) eventflag;
+      this.channel[i] = (byte) channel;
+      this.data1[i] = (byte) data1;
+      this.data2[i] = data2;
+      this.payload[i] = 0;
+      this.payloadlen[i] = 0;
+      return i;
+   }
+
+   /** Add a sysex event (SysexEvent1 or SysexEvent2). Return its index. */
+   public int AddSysexEvent(int starttime, int deltatime, int eventflag,
+         char[] value)
+   {
+      int i = AddChannelEvent(starttime, deltatime, eventflag, 0, 0, 0);
+      payload[i] = addPayload(value);
+      payloadlen[i] = value.length;
+      return i;
+   }
+
+   /**
+    * Add a sysex event (SysexEvent1 or SysexEvent2) whose data are the next
+    * length bytes of the file. Return its index.
+    * 
+    * @throws MidiFileException
+    */
+   public int AddSysexEvent(int starttime, int deltatime, int eventflag,
+         MidiFileReader file, int length) throws MidiFileException
+   {
+      int i = AddChannelEvent(starttime, deltatime, eventflag, 0, 0, 0);
+      payload[i] = readPayload(file, length);
+      payloadlen[i] = length;
+      return i;
+   }
+
+   /**
+    * Add a meta event with the given metaevent code, whose data are the next
+    * length bytes of the file. Return its index.
+    * 
+    * @throws MidiFileException
+    */
+   public int AddMetaEvent(int starttime, int deltatime, int metaevent,
+         MidiFileReader file, int length) throws MidiFileException
+   {
+      int i = AddChannelEvent(starttime, deltatime, MidiFile.MetaEvent, 0,
+            metaevent, 0);
+      payload[i] = readPayload(file, length);
+      payloadlen[i] = length;
+      if (metaevent == MidiFile.MetaEventTempo && length == 3)
+      {
+         data2[i] = (getPayloadByte(i, 0) << 16) | (getPayloadByte(i, 1) << 8)
+               | getPayloadByte(i, 2);
+      }
+      return i;
+   }
+
+   /**
+    * Add a meta event with the given metaevent code and data. For tempo
+    * events, the tempo is decoded from the data. Return its index.
+    */
+   public int AddMetaEvent(int starttime, int deltatime, int metaevent,
+         char[] value)
+   {
+      int tempo = 0;
+      if (metaevent == MidiFile.MetaEventTempo && value.length == 3)
+      {
+         tempo = (value[0] << 16) | (value[1] << 8) | value[2];
+      }
+      int i = AddChannelEvent(starttime, deltatime, MidiFile.MetaEvent, 0,
+            metaevent, tempo);
+      payload[i] = addPayload(value);
+      payloadlen[i] = value.length;
+      return i;
+   }
+
+   /**
+    * Insert a tempo meta event at the given index. The tempo is kept in data2,
+    * so no payload is stored (payload[index] is -1).
+    */
+   public void InsertTempoEvent(int index, int starttime, int deltatime,
+         int tempo)
+   {
+      grow();
+      int move = count - 1 - index;
+      System.arraycopy(this.starttime, index, this.starttime, index + 1, move);
+      System.arraycopy(this.deltatime, index, this.deltatime, index + 1, move);
+      System.arraycopy(status, index, status, index + 1, move);
+      System.arraycopy(channel, index, channel, index + 1, move);
+      System.arraycopy(data1, index, data1, index + 1, move);
+      System.arraycopy(data2, index, data2, index + 1, move);
+      System.arraycopy(payload, index, payload, index + 1, move);
+      System.arraycopy(payloadlen, index, payloadlen, index + 1, move);
+      this.starttime[index] = starttime;
+      this.deltatime[index] = deltatime;
+      status[index] = (byte) MidiFile.MetaEvent;
+      channel[index] = 0;
+      data1[index] = (byte) MidiFile.MetaEventTempo;
+      data2[index] = tempo;
+      payload[index] = -1;
+      payloadlen[index] = 3;
+   }
+
+   /**
+    * Append a copy of event i of the given list, and return its index. The
+    * source list must share its payload data with this list (see
+    * MidiEventList(MidiEventList, int)).
+    */
+   public int Add(MidiEventList source, int i)
+   {
+      int j = grow();
+      starttime[j] = source.starttime[i];
+      deltatime[j] = source.deltatime[i];
+      status[j] = source.status[i];
+      channel[j] = source.channel[i];
+      data1[j] = source.data1[i];
+      data2[j] = source.data2[i];
+      payload[j] = source.payload[i];
+      payloadlen[j] = source.payloadlen[i];
+      return j;
+   }
+
+   /** Return a copy of this list. The payload data is shared, not copied. */
+   public MidiEventList Clone()
+   {
+      MidiEventList list = new MidiEventList(this, count + 1);
+      System.arraycopy(starttime, 0, list.starttime, 0, count);
+      System.arraycopy(deltatime, 0, list.deltatime, 0, count);
+      System.arraycopy(status, 0, list.status, 0, count);
+      System.arraycopy(channel, 0, list.channel, 0, count);
+      System.arraycopy(data1, 0, list.data1, 0, count);
+      System.arraycopy(data2, 0, list.data2, 0, count);
+      System.arraycopy(payload, 0, list.payload, 0, count);
+      System.arraycopy(payloadlen, 0, list.payloadlen, 0, count);
+      list.count = count;
+      return list;
+   }
+
+   /** Create a MidiEvent object holding a copy of event i */
+   public MidiEvent GetEvent(int i)
+   {
+      MidiEvent mevent = new MidiEvent();
+      int eventflag = getEventFlag(i);
+      mevent.DeltaTime = deltatime[i];
+      mevent.StartTime = starttime[i];
+      mevent.HasEventflag = true;
+      mevent.EventFlag = eventflag;
+      mevent.Channel = channel[i];
+      if (eventflag == MidiFile.EventNoteOn
+            || eventflag == MidiFile.EventNoteOff)
+      {
+         mevent.Notenumber = getData1(i);
+         mevent.Velocity = data2[i];
+      }
+      else if (eventflag == MidiFile.EventKeyPressure)
+      {
+         mevent.Notenumber = getData1(i);
+         mevent.KeyPressure = data2[i];
+      }
+      else if (eventflag == MidiFile.EventControlChange)
+      {
+         mevent.ControlNum = getData1(i);
+         mevent.ControlValue = data2[i];
+      }
+      else if (eventflag == MidiFile.EventProgramChange)
+      {
+         mevent.Instrument = getData1(i);
+      }
+      else if (eventflag == MidiFile.EventChannelPressure)
+      {
+         mevent.ChanPressure = getData1(i);
+      }
+      else if (eventflag == MidiFile.EventPitchBend)
+      {
+         mevent.PitchBend = getPitchBend(i);
+      }
+      else
+      {
+         /* The data is copied out when mevent.getValue() is called */
+         mevent.Metalength = payloadlen[i];
+         mevent.SetPayload(this, i);
+         if (eventflag == MidiFile.MetaEvent)
+         {
+            mevent.Metaevent = getData1(i);
+            if (mevent.Metaevent == MidiFile.MetaEventTempo)
+            {
+               mevent.Tempo = data2[i];
+            }
+            else if (mevent.Metaevent == MidiFile.MetaEventTimeSignature)
+            {
+               mevent.Numerator = getNumerator(i);
+               mevent.Denominator = getDenominator(i);
+            }
+         }
+      }
+      return mevent;
+   }
+}
@@ -0,0 +1,142 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @class MidiEventPipeline A MidiEventPipeline reads the events of a Midi
+ *        file through a list of MidiEventStages, such as Transpose or
+ *        StartAtPulse. The events are changed as they are read, into a
+ *        single PipelineEvent per track, so the event lists are never
+ *        copied. The same pipeline can be read any number of times.
+ * 
+ *        A typical use, by the encoder or a sequencer, is:
+ * 
+ *        for (int tracknum : pipeline.GetTracks()) { PipelineEvent ev =
+ *        pipeline.Open(tracknum); while (pipeline.Next(ev)) { ... } }
+ * 
+ *        If a start tempo is set, each track begins with a tempo event at
+ *        time 0, which also passes through the stages.
+ */
+public class MidiEventPipeline
+{
+   private MidiEventList[] events;
+   /** The events of each track */
+   private List<MidiEventStage> stages;
+   /** The stages, in the order they are applied */
+   private int starttempo;
+
+   /** The tempo to set at the start of each track, or 0 for none */
+
+   /** Create a pipeline, with no stages, over the given events */
+   public MidiEventPipeline(MidiEventList[] events)
+   {
+      this.events = events;
+      stages = new ArrayList<MidiEventStage>();
+      starttempo = 0;
+   }
+
+   /** Add a stage, applied after the stages already added */
+   public void Add(MidiEventStage stage)
+   {
+      stages.add(stage);
+   }
+
+   /**
+    * Begin each track with a tempo event at time 0, with the given tempo in
+    * microseconds per quarter note
+    */
+   public void SetStartTempo(int tempo)
+   {
+      starttempo = tempo;
+   }
+
+   /** Return the events the pipeline reads */
+   public MidiEventList[] getEvents()
+   {
+      return events;
+   }
+
+   /** Return the numbers of the tracks that the stages keep */
+   public int[] GetTracks()
+   {
+      int[] result = new int[events.length];
+      int count = 0;
+      for (int tracknum = 0; tracknum < events.length; tracknum++)
+      {
+         boolean keep = true;
+         for (MidiEventStage stage : stages)
+         {
+            keep = keep && stage.KeepTrack(tracknum, events[tracknum]);
+         }
+         if (keep)
+         {
+            result[count++] = tracknum;
+         }
+      }
+      return Arrays.copyOf(result, count);
+   }
+
+   /**
+    * Start reading the given track. Return the event to pass to Next(),
+    * which holds the position in the track.
+    */
+   public PipelineEvent Open(int tracknum)
+   {
+      MidiEventList list = events[tracknum];
+      MidiEventStage[] started = new MidiEventStage[stages.size()];
+      for (int s = 0; s < started.length; s++)
+      {
+         started[s] = stages.get(s).StartTrack(tracknum, list);
+      }
+      return new PipelineEvent(tracknum, list, started);
+   }
+
+   /**
+    * Read the next event of the track that passes all the stages into ev.
+    * Return false at the end of the track.
+    */
+   public boolean Next(PipelineEvent ev)
+   {
+      while (true)
+      {
+         if (ev.next < 0)
+         {
+            ev.next = 0;
+            if (starttempo == 0)
+               continue;
+            ev.LoadTempo(starttempo);
+         }
+         else if (ev.next < ev.source.Count())
+         {
+            ev.Load(ev.next++);
+         }
+         else
+         {
+            return false;
+         }
+
+         boolean keep = true;
+         for (int s = 0; keep && s < ev.stages.length; s++)
+         {
+            keep = ev.stages[s].Apply(ev);
+         }
+         if (keep)
+            return true;
+      }
+   }
+}
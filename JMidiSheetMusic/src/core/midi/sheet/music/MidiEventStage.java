@@ -0,0 +1,282 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+/**
+ * @class MidiEventStage A MidiEventStage is one step of a MidiEventPipeline.
+ *        Each event read from a track is passed to Apply(), which may change
+ *        its fields, or drop it by returning false. A stage can also leave
+ *        out whole tracks with KeepTrack().
+ * 
+ *        A stage that needs to remember things while a track is read returns
+ *        a new stage for each track from StartTrack(), so several tracks can
+ *        be read at the same time.
+ * 
+ *        The stages used for the sound options are:
+ * 
+ *        - TrackFilter: leave out tracks
+ *        - ChannelMute: silence the notes of some channels
+ *        - Transpose: shift the note numbers
+ *        - TempoScale: scale the tempo changes
+ *        - InstrumentOverride: change the instrument of each track or channel
+ *        - StartAtPulse: start the music at a given time
+ */
+public abstract class MidiEventStage
+{
+   /** Return false to leave out the given track entirely */
+   public boolean KeepTrack(int tracknum, MidiEventList list)
+   {
+      return true;
+   }
+
+   /**
+    * Called before the events of a track are read. Return the stage to use
+    * for this track: this stage, or a new one holding per-track state.
+    */
+   public MidiEventStage StartTrack(int tracknum, MidiEventList list)
+   {
+      return this;
+   }
+
+   /** Change the given event. Return false to drop it. */
+   public abstract boolean Apply(PipelineEvent ev);
+
+   /** Keep only the tracks marked true */
+   public static class TrackFilter extends MidiEventStage
+   {
+      private boolean[] keeptracks;
+
+      /** The tracks to keep, by track number */
+
+      public TrackFilter(boolean[] keeptracks)
+      {
+         this.keeptracks = keeptracks;
+      }
+
+      @Override
+      public boolean KeepTrack(int tracknum, MidiEventList list)
+      {
+         return keeptracks[tracknum];
+      }
+
+      @Override
+      public boolean Apply(PipelineEvent ev)
+      {
+         return true;
+      }
+   }
+
+   /**
+    * Silence the notes on the channels not marked true, by setting the
+    * NoteOn/NoteOff velocity to 0. The other events of those channels are
+    * kept.
+    */
+   public static class ChannelMute extends MidiEventStage
+   {
+      private boolean[] keepchannel;
+
+      /** The channels to keep playing */
+
+      public ChannelMute(boolean[] keepchannel)
+      {
+         this.keepchannel = keepchannel;
+      }
+
+      @Override
+      public boolean Apply(PipelineEvent ev)
+      {
+         if ((ev.EventFlag == MidiFile.EventNoteOn || ev.EventFlag == MidiFile.EventNoteOff)
+               && !keepchannel[ev.Channel])
+         {
+            ev.Data2 = 0;
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Shift the note number of NoteOn, NoteOff and KeyPressure events,
+    * keeping it within 0 to 127
+    */
+   public static class Transpose extends MidiEventStage
+   {
+      private int amount;
+
+      /** The number of half-steps to shift by */
+
+      public Transpose(int amount)
+      {
+         this.amount = amount;
+      }
+
+      @Override
+      public boolean Apply(PipelineEvent ev)
+      {
+         if (ev.EventFlag == MidiFile.EventNoteOn || ev.EventFlag == MidiFile.EventNoteOff
+               || ev.EventFlag == MidiFile.EventKeyPressure)
+         {
+            ev.Data1 = Math.max(0, Math.min(127, ev.Data1 + amount));
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Scale the tempo changes of the song, so that the tempo oldtempo becomes
+    * newtempo. Tempo events inserted by the pipeline are left alone.
+    */
+   public static class TempoScale extends MidiEventStage
+   {
+      private int oldtempo;
+      /** The tempo to scale from, in microseconds per quarter note */
+      private int newtempo;
+
+      /** The tempo to scale to, in microseconds per quarter note */
+
+      public TempoScale(int oldtempo, int newtempo)
+      {
+         this.oldtempo = oldtempo;
+         this.newtempo = newtempo;
+      }
+
+      @Override
+      public boolean Apply(PipelineEvent ev)
+      {
+         if (ev.getMetaevent() == MidiFile.MetaEventTempo && !ev.IsInserted())
+         {
+            ev.Data2 = (int) ((long) ev.Data2 * newtempo / oldtempo);
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Change the instrument of each ProgramChange event, to the instrument
+    * of its track, or of its channel if bychannel is true
+    */
+   public static class InstrumentOverride extends MidiEventStage
+   {
+      private int[] instruments;
+      /** The instrument of each track or channel */
+      private boolean bychannel;
+      /** True if instruments is indexed by channel */
+      private int tracknum;
+
+      /** The track being read */
+
+      public InstrumentOverride(int[] instruments, boolean bychannel)
+      {
+         this.instruments = instruments;
+         this.bychannel = bychannel;
+         this.tracknum = -1;
+      }
+
+      @Override
+      public MidiEventStage StartTrack(int tracknum, MidiEventList list)
+      {
+         if (bychannel)
+            return this;
+         InstrumentOverride stage = new InstrumentOverride(instruments, false);
+         stage.tracknum = tracknum;
+         return stage;
+      }
+
+      @Override
+      public boolean Apply(PipelineEvent ev)
+      {
+         if (ev.EventFlag == MidiFile.EventProgramChange)
+         {
+            ev.Data1 = instruments[bychannel ? ev.Channel : tracknum];
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Start the music at the given time (in pulses). The times are shifted so
+    * that the pulse becomes time 0.
+    * 
+    * NoteOn/NoteOff events before the pulse are dropped. The other events
+    * before it are moved to time 0, so the instruments, tempo, etc. are set
+    * up when the music starts. Of the ControlChange events before the
+    * pulse, only the first for each channel and controller is kept, with
+    * the value of the last.
+    */
+   public static class StartAtPulse extends MidiEventStage
+   {
+      private int pulse;
+      /** The time to start at */
+      private int[] lastvalue;
+      /** The last value of each channel*128 + controller before the pulse */
+      private boolean[] sent;
+      /** True once the ControlChange for channel*128 + controller is kept */
+      private boolean started;
+
+      /** True once the first event at or after the pulse is read */
+
+      public StartAtPulse(int pulse)
+      {
+         this.pulse = pulse;
+      }
+
+      @Override
+      public MidiEventStage StartTrack(int tracknum, MidiEventList list)
+      {
+         StartAtPulse stage = new StartAtPulse(pulse);
+         for (int i = 0; i < list.Count() && list.getStartTime(i) < pulse; i++)
+         {
+            if (list.getEventFlag(i) != MidiFile.EventControlChange)
+               continue;
+            if (stage.lastvalue == null)
+            {
+               stage.lastvalue = new int[16 * 128];
+               stage.sent = new boolean[16 * 128];
+            }
+            stage.lastvalue[list.getChannel(i) * 128 + list.getData1(i)] = list.getData2(i);
+         }
+         return stage;
+      }
+
+      @Override
+      public boolean Apply(PipelineEvent ev)
+      {
+         if (ev.StartTime >= pulse)
+         {
+            if (!started)
+            {
+               ev.DeltaTime = ev.StartTime - pulse;
+               started = true;
+            }
+            ev.StartTime -= pulse;
+            return true;
+         }
+
+         if (ev.EventFlag == MidiFile.EventNoteOn || ev.EventFlag == MidiFile.EventNoteOff)
+         {
+            return false;
+         }
+         if (ev.EventFlag == MidiFile.EventControlChange)
+         {
+            int controller = ev.Channel * 128 + ev.Data1;
+            if (sent[controller])
+               return false;
+            sent[controller] = true;
+            ev.Data2 = lastvalue[controller];
+         }
+         ev.StartTime = 0;
+         ev.DeltaTime = 0;
+         return true;
+      }
+   }
+}
@@ -13,9 +13,20 @@ package core.midi.sheet.music;
 *  GNU General Public License for more details.
 */
 
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /*
  * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
@@ -204,13 +215,24 @@ import java.util.List;
 
    public class MidiFile {
        private String filename;          /** The Midi file name */
-       private List<MidiEvent> events[]; /** The raw MidiEvents, one list per track */
+       private MidiEventList[] events;   /** The raw MidiEvents, one list per track */
        private List<MidiTrack> tracks ;  /** The tracks of the midifile that have notes */
        private int trackmode;         /** 0 (single track), 1 (simultaneous tracks) 2 (independent tracks) */
        private TimeSignature timesig;    /** The time signature */
+       private TempoMap tempos;          /** All the tempo changes of the song */
        private int quarternote;          /** The number of pulses per quarter note */
-       private int totalpulses;          /** The total length of the song, : pulses */
+       private SongSummary summary;      /** The end time, note counts, etc of the song */
        private boolean trackPerChannel;     /** True if we've split each channel into a track */
+       private String[] stageKeys;       /** The options each kept stage of ChangeMidiNotes was run with */
+       private List<List<MidiTrack>> stageTracks; /** The tracks after each stage of ChangeMidiNotes */
+
+       /* The stages of ChangeMidiNotes */
+       private static final int StageRoundStartTimes = 0;
+       private static final int StageRoundDurations  = 1;
+       private static final int StageTwoStaffs       = 2;
+       private static final int StageShiftTime       = 3;
+       private static final int StageTranspose       = 4;
+       private static final int StageCount           = 5;
 
        /* The list of Midi Events */
        public static int EventNoteOff         = 0x80;
@@ -238,6 +260,9 @@ import java.util.List;
        public static int MetaEventTimeSignature = 0x58;
        public static int MetaEventKeySignature  = 0x59;
 
+       /** The pool used to decode the MTrk chunks concurrently */
+       private static final ForkJoinPool trackPool = new ForkJoinPool();
+
        /* The Program Change event gives the instrument that should
         * be used for a particular channel.  The following table
         * maps each instrument number (0 thru 128) to an instrument
@@ -443,6 +468,11 @@ import java.util.List;
            return timesig; 
        }
 
+       /** Get the tempo changes of the song */
+       public TempoMap getTempoMap() {
+           return tempos;
+       }
+
        /** Get the file name */
        public String getFileName() {
            return filename; 
@@ -450,24 +480,99 @@ import java.util.List;
 
        /** Get the total length (in pulses) of the song */
        public int getTotalPulses() {
-           return totalpulses; 
+           return summary.getTotalPulses(); 
+       }
+
+       /** Get the summary of the song, found when it was parsed */
+       public SongSummary getSummary() {
+           return summary;
+       }
+
+       /** Get the raw MidiEvents, one list per track */
+       MidiEventList[] getEvents() {
+           return events;
+       }
+
+       /** Get the track mode of the MThd header */
+       int getTrackMode() {
+           return trackmode;
+       }
+
+       /** Return true if we've split each channel into a track */
+       boolean isTrackPerChannel() {
+           return trackPerChannel;
        }
 
 
        /** Create a new MidiFile from the file. */
-       public MidiFile(String filename) {
+       public MidiFile(String filename) throws MidiFileException, IOException {
            MidiFileReader file = new MidiFileReader(filename);
            parse(file, filename);
        }
 
+       /** Create a new MidiFile from the file.  If parallel is true,
+        * the tracks are decoded concurrently.
+        */
+       public MidiFile(String filename, boolean parallel) throws MidiFileException, IOException {
+           MidiFileReader file = new MidiFileReader(filename);
+           parse(file, filename, parallel);
+       }
+
+       /** Create a new MidiFile from the given reader.  When ingesting
+        * many songs, a reader created with MidiFileReader(filename, true)
+        * maps each file instead of reading it into memory.
+        */
+       public MidiFile(MidiFileReader file, String filename) throws MidiFileException {
+           if (filename == null)
+               filename = "";
+           parse(file, filename);
+       }
+
        /** Create a new MidiFile from the char[]. */
-       public MidiFile(char[] data, String title) {
+       public MidiFile(char[] data, String title) throws MidiFileException {
            MidiFileReader file = new MidiFileReader(data);
            if (title == null)
                title = "";
            parse(file, title);
        }
 
+       /** Create a new MidiFile from the stream (a jar resource, a zip
+        * entry, a socket).  The MThd/MTrk chunks are parsed as they are
+        * read, without first copying the stream into memory.
+        * The stream is not closed.
+        */
+       public MidiFile(InputStream stream, String title) throws MidiFileException {
+           MidiFileReader file = new MidiFileReader(stream);
+           if (title == null)
+               title = "";
+           parse(file, title);
+       }
+
+       /** Create a new MidiFile from the channel.  The channel is not closed. */
+       public MidiFile(ReadableByteChannel channel, String title) throws MidiFileException {
+           MidiFileReader file = new MidiFileReader(channel);
+           if (title == null)
+               title = "";
+           parse(file, title);
+       }
+
+       /** Create a MidiFile from parts that were already parsed, such as
+        * the ones kept by a MidiFileCache.
+        */
+       MidiFile(String filename, MidiEventList[] events, List<MidiTrack> tracks,
+                int trackmode, TimeSignature timesig, int totalpulses,
+                boolean trackPerChannel) {
+           this.filename = filename;
+           this.events = events;
+           this.tracks = tracks;
+           this.trackmode = trackmode;
+           this.timesig = timesig;
+           this.quarternote = timesig.getQuarter();
+           this.trackPerChannel = trackPerChannel;
+           tempos = new TempoMap(events, quarternote, timesig.getTempo());
+           summary = new SongSummary(tracks, timesig, totalpulses);
+       }
+
        /** Parse the given Midi file, and return an instance of this MidiFile
         * class.  After reading the midi file, this object will contain:
         * - The raw list of midi events
@@ -475,7 +580,17 @@ import java.util.List;
         * - All the tracks : the song which contain notes. 
         * - The number, starttime, and duration of each note.
         */
-       public void parse(MidiFileReader file, String filename) {
+       public void parse(MidiFileReader file, String filename) throws MidiFileException {
+           parse(file, filename, false);
+       }
+
+       /** Parse the given Midi file.  If parallel is true and the file data
+        * is in memory, the MTrk chunks are located first, and then decoded
+        * concurrently (see ReadTracksParallel).  Otherwise the tracks are
+        * decoded one after the other.
+        */
+       public void parse(MidiFileReader file, String filename, boolean parallel)
+           throws MidiFileException {
            String id;
            int len;
 
@@ -484,7 +599,7 @@ import java.util.List;
            trackPerChannel = false;
 
            id = file.ReadAscii(4);
-           if (id != "MThd") {
+           if (!id.equals("MThd")) {
                throw new MidiFileException("Doesn't start with MThd", 0);
            }
            len = file.ReadInt(); 
@@ -495,46 +610,67 @@ import java.util.List;
            int num_tracks = file.ReadShort();
            quarternote = file.ReadShort(); 
 
-           events = (ArrayList<MidiEvent>[]) new ArrayList[num_tracks];
-           for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
-               events[tracknum] = ReadTrack(file);
-               MidiTrack track = new MidiTrack(events[tracknum], tracknum);
+           events = new MidiEventList[num_tracks];
+           MidiTrack[] alltracks = new MidiTrack[num_tracks];
+           int[][] firstmeta = new int[num_tracks][3];
+           if (parallel && num_tracks > 1 && file.GetLength() >= 0) {
+               ReadTracksParallel(file, alltracks, firstmeta);
+           }
+           else {
+               for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+                   events[tracknum] = ReadTrack(file, firstmeta[tracknum]);
+                   alltracks[tracknum] = new MidiTrack(events[tracknum], tracknum);
+               }
+           }
+           for (MidiTrack track : alltracks) {
                if (track.getNotes().size() > 0) {
                    tracks.add(track);
                }
            }
 
            /* Get the length of the song : pulses */
+           int totalpulses = 0;
            for(MidiTrack track : tracks) {
-               MidiNote last = track.getNotes().get(track.getNotes().size()-1);
-               if (this.totalpulses < last.getStartTime() + last.getDuration()) {
-                   this.totalpulses = last.getStartTime() + last.getDuration();
+               NoteTable notes = track.getNoteTable();
+               int last = notes.Count() - 1;
+               if (totalpulses < notes.getEndTime(last)) {
+                   totalpulses = notes.getEndTime(last);
                }
            }
 
            /* If we only have one track with multiple channels, then treat
             * each channel as a separate track.
             */
-           if (tracks.size() == 1 && HasMultipleChannels(tracks.get(0))) {
-               tracks = SplitChannels(tracks.get(0), events[tracks.get(0).getNumber()]);
-               trackPerChannel = true;
+           if (tracks.size() == 1) {
+               List<MidiTrack> channeltracks = tracks.get(0).SplitChannels();
+               if (channeltracks != null) {
+                   tracks = channeltracks;
+                   trackPerChannel = true;
+               }
            }
 
-           CheckStartTimes(tracks);
+           /* The notes of a chord were added in event order.  Put them in
+            * MidiNote order once here, so that later changes such as
+            * RoundStartTimes() only have to keep that order.
+            */
+           for (MidiTrack track : tracks) {
+               track.getNoteTable().Sort();
+           }
+           assert CheckStartTimes(tracks);
 
-           /* Determine the time signature */
+           /* Determine the time signature, from the first tempo and time
+            * signature events, which ReadTrack noted for each track.
+            */
            int tempo = 0;
            int numer = 0;
            int denom = 0;
-           for (List<MidiEvent> list : events) {
-               for (MidiEvent mevent : list) {
-                   if (mevent.Metaevent == MetaEventTempo && tempo == 0) {
-                       tempo = mevent.Tempo;
-                   }
-                   if (mevent.Metaevent == MetaEventTimeSignature && numer == 0) {
-                       numer = mevent.Numerator;
-                       denom = mevent.Denominator;
-                   }
+           for (int[] meta : firstmeta) {
+               if (tempo == 0) {
+                   tempo = meta[0];
+               }
+               if (numer == 0) {
+                   numer = meta[1];
+                   denom = meta[2];
                }
            }
            if (tempo == 0) {
@@ -544,444 +680,288 @@ import java.util.List;
                numer = 4; denom = 4;
            }
            timesig = new TimeSignature(numer, denom, quarternote, tempo);
+           tempos = new TempoMap(events, quarternote, tempo);
+           summary = new SongSummary(tracks, timesig, totalpulses);
        }
 
-       /** Parse a single Midi track into a list of MidiEvents.
-        * Entering this function, the file offset should be at the start of
-        * the MTrk header.  Upon exiting, the file offset should be at the
-        * start of the next MTrk header.
+       /** Decode all the MTrk chunks concurrently.  First walk the chunk
+        * headers to find where each track starts (every MTrk has a length
+        * prefix, and running status never crosses a chunk), then decode
+        * each track and build its MidiTrack on the trackPool.  The results
+        * are stored in track order, in events[], alltracks[] and firstmeta[].
         */
-       private List<MidiEvent> ReadTrack(MidiFileReader file) {
-           List<MidiEvent> result = new ArrayList<MidiEvent>();
-           int starttime = 0;
-           String id = file.ReadAscii(4);
-
-           if (id != "MTrk") {
-               throw new MidiFileException("Bad MTrk header", file.GetOffset() - 4);
+       private void ReadTracksParallel(MidiFileReader file, MidiTrack[] alltracks,
+                                       final int[][] firstmeta)
+           throws MidiFileException {
+           int num_tracks = alltracks.length;
+           int[] offsets = new int[num_tracks];
+           for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+               offsets[tracknum] = file.GetOffset();
+               String id = file.ReadAscii(4);
+               if (!id.equals("MTrk")) {
+                   throw new MidiFileException("Bad MTrk header", file.GetOffset() - 4);
+               }
+               int tracklen = file.ReadInt();
+               /* A truncated last track is decoded as far as it goes */
+               file.Skip(Math.min(tracklen, file.GetLength() - file.GetOffset()));
            }
-           int tracklen = file.ReadInt();
-           int trackend = tracklen + file.GetOffset();
-
-           int EventFlag = 0;
-
-           while (file.GetOffset() < trackend) {
 
-               // If the midi file is truncated here, we can still recover.
-               // Just return what we've parsed so far.
+           List<Callable<MidiTrack>> tasks = new ArrayList<Callable<MidiTrack>>(num_tracks);
+           for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+               final MidiFileReader trackfile = new MidiFileReader(file, offsets[tracknum]);
+               final int number = tracknum;
+               tasks.add(new Callable<MidiTrack>() {
+                   public MidiTrack call() throws MidiFileException {
+                       events[number] = ReadTrack(trackfile, firstmeta[number]);
+                       return new MidiTrack(events[number], number);
+                   }
+               });
+           }
 
-               int startoffset, deltatime;
-               char peekevent;
+           List<Future<MidiTrack>> results = trackPool.invokeAll(tasks);
+           for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
                try {
-                   startoffset = file.GetOffset();
-                   deltatime = file.ReadVarlen();
-                   starttime += deltatime;
-                   peekevent = file.Peek();
+                   alltracks[tracknum] = results.get(tracknum).get();
                }
-               catch (MidiFileException e) {
-                   return result;
+               catch (ExecutionException e) {
+                   if (e.getCause() instanceof MidiFileException) {
+                       throw (MidiFileException) e.getCause();
+                   }
+                   throw new RuntimeException(e.getCause());
                }
-
-               MidiEvent mevent = new MidiEvent();
-               result.add(mevent);
-               mevent.DeltaTime = deltatime;
-               mevent.StartTime = starttime;
-
-               if (peekevent >= EventNoteOff) { 
-                   mevent.HasEventflag = true; 
-                   mevent.EventFlag = file.ReadByte();
+               catch (InterruptedException e) {
+                   Thread.currentThread().interrupt();
+                   throw new MidiFileException("Interrupted while parsing", offsets[tracknum]);
                }
+           }
+       }
 
-               // Console.WriteLine("offset {0}: event {1} {2} start {3} delta {4}", 
-               //                   startoffset, mevent.EventFlag, EventName(mevent.EventFlag), 
-               //                   starttime, DeltaTime);
+       /** Parse a single Midi track into a list of MidiEvents.
+        * Entering this function, the file offset should be at the start of
+        * the MTrk header.  Upon exiting, the file offset should be at the
+        * start of the next MTrk header.
+        *
+        * The first nonzero tempo of the track is stored in firstmeta[0],
+        * and the first time signature with a nonzero numerator in
+        * firstmeta[1] (numerator) and firstmeta[2] (denominator).  They
+        * stay 0 if the track has none.
+        */
+       private static MidiEventList ReadTrack(MidiFileReader file, int[] firstmeta)
+           throws MidiFileException {
+           MidiEventList result = new MidiEventList(file);
+           MidiEventCursor cursor = new MidiEventCursor(file);
+           MidiEvent mevent = new MidiEvent();
 
-               if (mevent.EventFlag >= EventNoteOn && mevent.EventFlag < EventNoteOn + 16) {
-            	   mevent.EventFlag = EventNoteOn;
-            	   mevent.Channel = (mevent.EventFlag - EventNoteOn);
-            	   mevent.Notenumber = file.ReadByte();
-            	   mevent.Velocity = file.ReadByte();
-               }
-               else if (mevent.EventFlag >= EventNoteOff && mevent.EventFlag < EventNoteOff + 16) {
-            	   mevent.EventFlag = EventNoteOff;
-            	   mevent.Channel = (char)(mevent.EventFlag - EventNoteOff);
-            	   mevent.Notenumber = file.ReadByte();
-            	   mevent.Velocity = file.ReadByte();
-               }
-               else if (mevent.EventFlag >= EventKeyPressure && 
-                        mevent.EventFlag < EventKeyPressure + 16) {
-            	   mevent.EventFlag = EventKeyPressure;
-            	   mevent.Channel = (char)(mevent.EventFlag - EventKeyPressure);
-            	   mevent.Notenumber = file.ReadByte();
-            	   mevent.KeyPressure = file.ReadByte();
-               }
-               else if (mevent.EventFlag >= EventControlChange && 
-                        mevent.EventFlag < EventControlChange + 16) {
-            	   mevent.EventFlag = EventControlChange;
-            	   mevent.Channel = (char)(mevent.EventFlag - EventControlChange);
-            	   mevent.ControlNum = file.ReadByte();
-            	   mevent.ControlValue = file.ReadByte();
-               }
-               else if (mevent.EventFlag >= EventProgramChange && 
-                        mevent.EventFlag < EventProgramChange + 16) {
-            	   mevent.EventFlag = EventProgramChange;
-            	   mevent.Channel = (char)(mevent.EventFlag - EventProgramChange);
-            	   mevent.Instrument = file.ReadByte();
-               }
-               else if (mevent.EventFlag >= EventChannelPressure && 
-                        mevent.EventFlag < EventChannelPressure + 16) {
-            	   mevent.EventFlag = EventChannelPressure;
-            	   mevent.Channel = (char)(mevent.EventFlag - EventChannelPressure);
-            	   mevent.ChanPressure = file.ReadByte();
-               }
-               else if (mevent.EventFlag >= EventPitchBend && 
-                        mevent.EventFlag < EventPitchBend + 16) {
-            	   mevent.EventFlag = EventPitchBend;
-            	   mevent.Channel = (char)(mevent.EventFlag - EventPitchBend);
-            	   mevent.PitchBend = file.ReadShort();
-               }
-               else if (mevent.EventFlag == SysexEvent1) {
-            	   mevent.EventFlag = SysexEvent1;
-            	   mevent.Metalength = file.ReadVarlen();
-            	   mevent.Value = file.ReadBytes(mevent.Metalength);
-               }
-               else if (mevent.EventFlag == SysexEvent2) {
-            	   mevent.EventFlag = SysexEvent2;
-            	   mevent.Metalength = file.ReadVarlen();
-            	   mevent.Value = file.ReadBytes(mevent.Metalength);
+           while (cursor.Next(mevent)) {
+               int eventflag = mevent.EventFlag;
+               if (eventflag == SysexEvent1 || eventflag == SysexEvent2) {
+                   result.AddSysexEvent(mevent.StartTime, mevent.DeltaTime, eventflag,
+                                        file, mevent.Metalength);
                }
-               else if (mevent.EventFlag == MetaEvent) {
-            	   mevent.EventFlag = MetaEvent;
-            	   mevent.Metaevent = file.ReadByte();
-            	   mevent.Metalength = file.ReadVarlen();
-            	   mevent.Value = file.ReadBytes(mevent.Metalength);
-                   if (mevent.Metaevent == MetaEventTimeSignature) {
-                       if (mevent.Metalength < 2) {
-                           // throw new MidiFileException(
-                           //  "Meta Event Time Signature len == " + Metalength  + 
-                           //  " != 4", file.GetOffset());
-                    	   mevent.Numerator = 0;
-                    	   mevent.Denominator = 4;
-                       }
-                       else if (mevent.Metalength >= 2 && mevent.Metalength < 4) {
-                    	   mevent.Numerator = mevent.Value[0];
-                    	   mevent.Denominator = (int)Math.pow(2,mevent.Value[1]);
-                       }
-                       else {
-                    	   mevent.Numerator = mevent.Value[0];
-                    	   mevent.Denominator = (int) Math.pow(2, mevent.Value[1]);
-                       }
-                   }
-                   else if (mevent.Metaevent == MetaEventTempo) {
-                       if (mevent.Metalength != 3) {
-                           throw new MidiFileException(
-                             "Meta Event Tempo len == " + mevent.Metalength +
-                             " != 3", file.GetOffset());
-                       }
-                       mevent.Tempo = ( (mevent.Value[0] << 16) | (mevent.Value[1] << 8) | mevent.Value[2]);
+               else if (eventflag == MetaEvent) {
+                   int i = result.AddMetaEvent(mevent.StartTime, mevent.DeltaTime,
+                                               mevent.Metaevent, file, mevent.Metalength);
+                   if (mevent.Metaevent == MetaEventTempo && firstmeta[0] == 0) {
+                       firstmeta[0] = result.getTempo(i);
                    }
-                   else if (mevent.Metaevent == MetaEventEndOfTrack) {
-                       /* break;  */
+                   else if (mevent.Metaevent == MetaEventTimeSignature && firstmeta[1] == 0) {
+                       firstmeta[1] = result.getNumerator(i);
+                       firstmeta[2] = result.getDenominator(i);
                    }
                }
                else {
-                   throw new MidiFileException("Unknown event " + mevent.EventFlag,
-                                                file.GetOffset()-1); 
+                   result.AddChannelEvent(mevent.StartTime, mevent.DeltaTime, eventflag,
+                                          mevent.Channel, cursor.GetData1(), cursor.GetData2());
                }
            }
-
            return result;
        }
 
-       /** Return true if this track contains multiple channels.
-        * If a MidiFile contains only one track, and it has multiple channels,
-        * then we treat each channel as a separate track.
-        */
-       static boolean HasMultipleChannels(MidiTrack track) {
-           int channel = track.getNotes().get(0).getChannel();
-           for (MidiNote note : track.getNotes()) {
-               if (note.getChannel() != channel) {
-                   return true;
-               }
-           }
-           return false;
-       }
-
-       /** Write a variable length number to the buffer at the given offset.
-        * Return the number of chars written.
-        */
-       static int VarlenTochars(int num, char[] buf, int offset) {
-           char b1 = (char) ((num >> 21) & 0x7F);
-           char b2 = (char) ((num >> 14) & 0x7F);
-           char b3 = (char) ((num >>  7) & 0x7F);
-           char b4 = (char) (num & 0x7F);
-
-           if (b1 > 0) {
-               buf[offset]   = (char)(b1 | 0x80);
-               buf[offset+1] = (char)(b2 | 0x80);
-               buf[offset+2] = (char)(b3 | 0x80);
-               buf[offset+3] = b4;
-               return 4;
-           }
-           else if (b2 > 0) {
-               buf[offset]   = (char)(b2 | 0x80);
-               buf[offset+1] = (char)(b3 | 0x80);
-               buf[offset+2] = b4;
-               return 3;
-           }
-           else if (b3 > 0) {
-               buf[offset]   = (char)(b3 | 0x80);
-               buf[offset+1] = b4;
-               return 2;
-           }
-           else {
-               buf[offset] = b4;
-               return 1;
-           }
-       }
-
-       /** Write a 4-char integer to data[offset : offset+4] */
-       private static void IntTochars(int value, char[] data, int offset) {
-           data[offset] = (char)( (value >> 24) & 0xFF );
-           data[offset+1] = (char)( (value >> 16) & 0xFF );
-           data[offset+2] = (char)( (value >> 8) & 0xFF );
-           data[offset+3] = (char)( value & 0xFF );
-       }
-
-       /** Calculate the track length (in chars) given a list of Midi events */
-       private static int GetTrackLength(List<MidiEvent> events) {
-           int len = 0;
-           char[] buf = new char[1024];
-           for (MidiEvent mevent : events) {
-               len += VarlenTochars(mevent.DeltaTime, buf, 0);
-               len += 1;  /* for mevent.EventFlag */
-               switch (mevent.EventFlag) {
-                   case EventNoteOn: len += 2; break;
-                   case EventNoteOff: len += 2; break;
-                   case EventKeyPressure: len += 2; break;
-                   case EventControlChange: len += 2; break;
-                   case EventProgramChange: len += 1; break;
-                   case EventChannelPressure: len += 1; break;
-                   case EventPitchBend: len += 2; break;
-
-                   case SysexEvent1: 
-                   case SysexEvent2:
-                       len += VarlenTochars(mevent.Metalength, buf, 0); 
-                       len += mevent.Metalength;
-                       break;
-                   case MetaEvent: 
-                       len += 1; 
-                       len += VarlenTochars(mevent.Metalength, buf, 0); 
-                       len += mevent.Metalength;
-                       break;
-                   default: break;
-               }
-           }
-           return len;
-       }
-               
-
-       /** Write the given list of Midi events to a stream/file.
+       /** Write the Midi events read through the pipeline to a MidiFileWriter.
         *  This method is used for sound playback, for creating new Midi files
         *  with the tempo, transpose, etc changed.
         *
-        *  Return true on success, and false on error.
+        *  Each MTrk length is left blank and filled in once the track is
+        *  written, so every event is encoded only once.
+        *
+        *  If compact is true, the file is made smaller:
+        *  - Running status: the status char is left out when it is the same
+        *    as that of the previous channel event in the track.
+        *  - NoteOff is written as NoteOn with velocity 0, so a run of notes
+        *    shares one status char.
+        *  - A ControlChange that sets a controller to the value it already
+        *    has is dropped (see RedundantControlChanges).
+        *  The bytes left out are counted as they go, and added to the
+        *  writer's GetSavedBytes().
         */
-       private static boolean 
-       WriteEvents(FileWriter file, List<MidiEvent>[] events, int trackmode, int quarter) {
-           try {
-               char[] buf = new char[4096];
-
-               /* Write the MThd, len = 6, track mode, number tracks, quarter note */
-               file.write("MThd", 0, 4);
-               IntTochars(6, buf, 0);
-               file.write(buf, 0, 4);
-               buf[0] = (char)(trackmode >> 8); 
-               buf[1] = (char)(trackmode & 0xFF);
-               file.write(buf, 0, 2);
-               buf[0] = 0; 
-               buf[1] = (char)events.Length;
-               file.write(buf, 0, 2);
-               buf[0] = (char)(quarter >> 8); 
-               buf[1] = (char)(quarter & 0xFF);
-               file.write(buf, 0, 2);
-
-               for (List<MidiEvent> list : events) {
-                   /* Write the MTrk header and track length */
-                   file.write(ASCIIEncoding.ASCII.Getchars("MTrk"), 0, 4);
-                   int len = GetTrackLength(list);
-                   IntTochars(len, buf, 0);
-                   file.write(buf, 0, 4);
-
-                   for (MidiEvent mevent : list) {
-                       int varlen = VarlenTochars(DeltaTime, buf, 0);
-                       file.write(buf, 0, varlen);
-
-                       if (mevent.EventFlag == SysexEvent1 ||
-                           mevent.EventFlag == SysexEvent2 ||
-                           mevent.EventFlag == MetaEvent) {
-                           buf[0] = (char) mevent.EventFlag;
-                       }
-                       else {
-                           buf[0] = (char)(mevent.EventFlag + Channel);
-                       }
-                       file.write(buf, 0, 1);
-
-                       if (mevent.EventFlag == EventNoteOn) {
-                           buf[0] = Notenumber;
-                           buf[1] = Velocity;
-                           file.write(buf, 0, 2);
-                       }
-                       else if (mevent.EventFlag == EventNoteOff) {
-                           buf[0] = Notenumber;
-                           buf[1] = Velocity;
-                           file.write(buf, 0, 2);
-                       }
-                       else if (mevent.EventFlag == EventKeyPressure) {
-                           buf[0] = Notenumber;
-                           buf[1] = KeyPressure;
-                           file.write(buf, 0, 2);
-                       }
-                       else if (mevent.EventFlag == EventControlChange) {
-                           buf[0] = ControlNum;
-                           buf[1] = ControlValue;
-                           file.write(buf, 0, 2);
-                       }
-                       else if (mevent.EventFlag == EventProgramChange) {
-                           buf[0] = Instrument;
-                           file.write(buf, 0, 1);
-                       }
-                       else if (mevent.EventFlag == EventChannelPressure) {
-                           buf[0] = ChanPressure;
-                           file.write(buf, 0, 1);
-                       }
-                       else if (mevent.EventFlag == EventPitchBend) {
-                           buf[0] = (char)(PitchBend >> 8);
-                           buf[1] = (char)(PitchBend & 0xFF);
-                           file.write(buf, 0, 2);
+       private static void
+       WriteEvents(MidiFileWriter file, MidiEventPipeline pipeline, int trackmode, int quarter,
+                   boolean compact) {
+           int[] tracknums = pipeline.GetTracks();
+           boolean[][] redundant = null;
+           if (compact) {
+               redundant = RedundantControlChanges(pipeline, tracknums);
+           }
+
+           /* Write the MThd, len = 6, track mode, number tracks, quarter note */
+           int chunk = file.StartChunk("MThd");
+           file.WriteShort(trackmode);
+           file.WriteShort(tracknums.length);
+           file.WriteShort(quarter);
+           file.EndChunk(chunk);
+
+           for (int t = 0; t < tracknums.length; t++) {
+               /* Write the MTrk header, and the track length when done */
+               chunk = file.StartChunk("MTrk");
+               int runningstatus = -1;
+               int skippedtime = 0;
+               int saved = 0;
+
+               PipelineEvent ev = pipeline.Open(tracknums[t]);
+               for (int i = 0; pipeline.Next(ev); i++) {
+                   if (compact && redundant[t][i]) {
+                       /* The delta time, status and two data bytes */
+                       saved += MidiFileWriter.VarlenSize(ev.DeltaTime) + 3;
+                       skippedtime += ev.DeltaTime;
+                       continue;
+                   }
+                   int eventflag = ev.EventFlag;
+                   if (skippedtime > 0) {
+                       saved += MidiFileWriter.VarlenSize(ev.DeltaTime) -
+                                MidiFileWriter.VarlenSize(ev.DeltaTime + skippedtime);
+                   }
+                   file.WriteVarlen(ev.DeltaTime + skippedtime);
+                   skippedtime = 0;
+
+                   if (eventflag == SysexEvent1 ||
+                       eventflag == SysexEvent2 ||
+                       eventflag == MetaEvent) {
+                       file.WriteByte(eventflag);
+                       runningstatus = -1;
+                   }
+                   else {
+                       int data2 = ev.Data2;
+                       if (compact && eventflag == EventNoteOff) {
+                           eventflag = EventNoteOn;
+                           data2 = 0;
                        }
-                       else if (mevent.EventFlag == SysexEvent1) {
-                           int offset = VarlenTochars(Metalength, buf, 0);
-                           Array.Copy(Value, 0, buf, offset, Value.Length);
-                           file.write(buf, 0, offset + Value.Length);
+                       int status = eventflag + ev.Channel;
+                       if (!compact || status != runningstatus) {
+                           file.WriteByte(status);
+                           runningstatus = status;
                        }
-                       else if (mevent.EventFlag == SysexEvent2) {
-                           int offset = VarlenTochars(Metalength, buf, 0);
-                           Array.Copy(Value, 0, buf, offset, Value.Length);
-                           file.write(buf, 0, offset + Value.Length);
+                       else {
+                           saved++;
                        }
-                       else if (mevent.EventFlag == MetaEvent && Metaevent == MetaEventTempo) {
-                           buf[0] = Metaevent;
-                           buf[1] = 3;
-                           buf[2] = (char)((Tempo >> 16) & 0xFF);
-                           buf[3] = (char)((Tempo >> 8) & 0xFF);
-                           buf[4] = (char)(Tempo & 0xFF);
-                           file.write(buf, 0, 5);
+                       if (eventflag == EventProgramChange ||
+                           eventflag == EventChannelPressure) {
+                           file.WriteByte(ev.Data1);
                        }
-                       else if (mevent.EventFlag == MetaEvent) {
-                           buf[0] = Metaevent;
-                           int offset = VarlenTochars(Metalength, buf, 1) + 1;
-                           Array.Copy(Value, 0, buf, offset, Value.Length);
-                           file.write(buf, 0, offset + Value.Length);
+                       else {
+                           /* NoteOn, NoteOff, KeyPressure, ControlChange, PitchBend */
+                           file.WriteByte(ev.Data1);
+                           file.WriteByte(data2);
                        }
+                       continue;
                    }
-               }
-               file.Close();
-               return true;
-           }
-           catch (IOException e) {
-               return false;
-           }
-       }
-
 
-       /** Clone the list of MidiEvents */
-       private static List<MidiEvent>[] CloneMidiEvents(List<MidiEvent>[] origlist) {
-           List<MidiEvent>[] newlist = new List<MidiEvent>[ origlist.Length];
-           for (int tracknum = 0; tracknum < origlist.Length; tracknum++) {
-               List<MidiEvent> origevents = origlist[tracknum];
-               List<MidiEvent> newevents = new List<MidiEvent>(origevents.Count);
-               newlist[tracknum] = newevents;
-               for (MidiEvent mevent : origevents) {
-                   newevents.Add( Clone() );
+                   if (eventflag == SysexEvent1 || eventflag == SysexEvent2) {
+                       file.WriteVarlen(ev.getMetalength());
+                       ev.WritePayload(file);
+                   }
+                   else if (ev.Data1 == MetaEventTempo) {
+                       int tempo = ev.getTempo();
+                       file.WriteByte(MetaEventTempo);
+                       file.WriteByte(3);
+                       file.WriteByte(tempo >> 16);
+                       file.WriteByte(tempo >> 8);
+                       file.WriteByte(tempo);
+                   }
+                   else {
+                       file.WriteByte(ev.Data1);
+                       file.WriteVarlen(ev.getMetalength());
+                       ev.WritePayload(file);
+                   }
                }
+               file.EndChunk(chunk);
+               file.AddSavedBytes(saved);
            }
-           return newlist;
        }
 
-       /** Create a new Midi tempo event, with the given tempo  */
-       private static MidiEvent CreateTempoEvent(int tempo) {
-           MidiEvent mevent = new MidiEvent();
-           DeltaTime = 0;
-           StartTime = 0;
-           Hasmevent.EventFlag = true;
-           mevent.EventFlag = MetaEvent;
-           Metaevent = MetaEventTempo;
-           Metalength = 3;
-           Tempo = tempo;
-           return mevent;
+       /** Return true if the given controller number holds a value that
+        *  a repeated ControlChange can't change.  Data entry, data
+        *  increment/decrement and the RPN/NRPN selectors act on each
+        *  message, and controllers 120 and above are channel mode messages,
+        *  so those are never redundant.
+        */
+       private static boolean IsStateController(int controller) {
+           if (controller >= 120)
+               return false;
+           if (controller == 6 || controller == 38 ||
+               (controller >= 96 && controller <= 101))
+               return false;
+           return true;
        }
 
-
-       /** Search the events for a ControlChange event with the same
-        *  channel and control number.  If a matching event is found,
-        *   update the control value.  Else, add a new ControlChange event.
-        */ 
-       private static void 
-       UpdateControlChange(List<MidiEvent> newevents, MidiEvent changeEvent) {
-    	   for (MidiEvent mevent : newevents) {
-               if ((mevent.EventFlag == changeEvent.mevent.EventFlag) &&
-                   (Channel == changeEvent.Channel) &&
-                   (ControlNum == changeEvent.ControlNum)) {
-
-                   ControlValue = changeEvent.ControlValue;
-                   return;
+       /** Find the ControlChange events that set a controller to the
+        *  value it already has on that channel.  Return, for each of the
+        *  given tracks, which of the events read through the pipeline are
+        *  redundant.
+        *
+        *  Tracks are played together, so a channel's controllers are only
+        *  followed when a single track sends ControlChange events on it.
+        *  A Reset All Controllers (121) forgets the values.  The last event
+        *  of a track is always kept, so the track length doesn't change.
+        */
+       private static boolean[][]
+       RedundantControlChanges(MidiEventPipeline pipeline, int[] tracknums) {
+           /* The track that changes the controllers of each channel,
+            * -1 if none, or -2 if more than one.  Also count the events.
+            */
+           int[] owner = new int[16];
+           Arrays.fill(owner, -1);
+           boolean[][] redundant = new boolean[tracknums.length][];
+           for (int t = 0; t < tracknums.length; t++) {
+               PipelineEvent ev = pipeline.Open(tracknums[t]);
+               int count = 0;
+               while (pipeline.Next(ev)) {
+                   count++;
+                   if (ev.EventFlag != EventControlChange)
+                       continue;
+                   if (owner[ev.Channel] == -1)
+                       owner[ev.Channel] = t;
+                   else if (owner[ev.Channel] != t)
+                       owner[ev.Channel] = -2;
                }
+               redundant[t] = new boolean[count];
            }
-           newevents.Add(changeEvent);
-       }
 
-       /** Start the Midi music at the given pause time (in pulses).
-        *  Remove any NoteOn/NoteOff events that occur before the pause time.
-        *  For other events, change the delta-time to 0 if they occur
-        *  before the pause time.  Return the modified Midi Events.
-        */
-       private static List<MidiEvent>[] 
-       StartAtPauseTime(List<MidiEvent>[] list, int pauseTime) {
-           List<MidiEvent>[] newlist = new List<MidiEvent>[ list.Length];
-           for (int tracknum = 0; tracknum < list.Length; tracknum++) {
-               List<MidiEvent> events = list[tracknum];
-               List<MidiEvent> newevents = new List<MidiEvent>(events.Count);
-               newlist[tracknum] = newevents;
-
-               boolean foundEventAfterPause = false;
-               for (MidiEvent mevent : events) {
-
-                   if (StartTime < pauseTime) {
-                       if (mevent.EventFlag == EventNoteOn ||
-                           mevent.EventFlag == EventNoteOff) {
-
-                           /* Skip NoteOn/NoteOff event */
-                       }
-                       else if (mevent.EventFlag == EventControlChange) {
-                           DeltaTime = 0;
-                           UpdateControlChange(newevents, mevent);
-                       }
-                       else {
-                           DeltaTime = 0;
-                           newevents.Add(mevent);
-                       }
-                   }
-                   else if (!foundEventAfterPause) {
-                       DeltaTime = (StartTime - pauseTime);
-                       newevents.Add(mevent);
-                       foundEventAfterPause = true;
+           int[][] values = new int[16][128];
+           for (int t = 0; t < tracknums.length; t++) {
+               PipelineEvent ev = pipeline.Open(tracknums[t]);
+               int last = redundant[t].length - 1;
+               for (int i = 0; pipeline.Next(ev); i++) {
+                   if (ev.EventFlag != EventControlChange)
+                       continue;
+                   int channel = ev.Channel;
+                   if (owner[channel] != t)
+                       continue;
+                   int controller = ev.Data1;
+                   int value = ev.Data2;
+                   if (controller == 121) {
+                       Arrays.fill(values[channel], 0);
                    }
-                   else {
-                       newevents.Add(mevent);
+                   if (!IsStateController(controller))
+                       continue;
+
+                   /* Values are stored plus one, so 0 means not yet set */
+                   if (values[channel][controller] == value + 1 && i < last) {
+                       redundant[t][i] = true;
                    }
+                   values[channel][controller] = value + 1;
                }
            }
-           return newlist;
+           return redundant;
        }
 
 
@@ -994,13 +974,17 @@ import java.util.List;
            return Write(destfile, options);
        }
 
+       /** Write this Midi file to the given filename.
+        * If options is not null, apply those options to the midi events
+        * before performing the write.  See MidiFileWriter.WriteTo(String):
+        * destfile is never left half written, and it can be the file this
+        * MidiFile was read from.
+        * Return true if the file was saved successfully, else false.
+        */
        public boolean Write(String destfile, MidiOptions options) {
            try {
-               FileStream stream;
-               stream = new FileStream(destfile, FileMode.Create);
-               boolean result = Write(stream, options);
-               stream.Close();
-               return result;
+               Encode(options).WriteTo(destfile);
+               return true;
            }
            catch (IOException e) {
                return false;
@@ -1009,28 +993,51 @@ import java.util.List;
 
        /** Write this Midi file to the given stream.
         * If options is not null, apply those options to the midi events
-        * before performing the write.
+        * before performing the write.  The stream is not closed.
         * Return true if the file was saved successfully, else false.
         */
-       public boolean Write(Stream stream, MidiOptions options) {
-           List<MidiEvent>[] newevents = events;
+       public boolean Write(OutputStream stream, MidiOptions options) {
+           try {
+               Encode(options).WriteTo(Channels.newChannel(stream));
+               stream.flush();
+               return true;
+           }
+           catch (IOException e) {
+               return false;
+           }
+       }
+
+       /** Encode this Midi file, and return the writer holding its bytes.
+        * If options is not null, apply those options to the midi events
+        * first, and use the compact encoding if options.compactMidi is set.
+        */
+       public MidiFileWriter Encode(MidiOptions options) {
+           MidiEventPipeline pipeline = new MidiEventPipeline(events);
+           boolean compact = false;
            if (options != null) {
-               newevents = ApplyOptionsToEvents(options);
+               pipeline = ApplyOptionsToEvents(options);
+               compact = options.compactMidi;
            }
-           return WriteEvents(stream, newevents, trackmode, quarternote);
+           MidiFileWriter file = new MidiFileWriter();
+           WriteEvents(file, pipeline, trackmode, quarternote, compact);
+           return file;
        }
 
 
-       /* Apply the following sound options to the midi events:
+       /* Return a pipeline that applies the following sound options to
+        * the midi events, as they are read:
         * - The tempo (the microseconds per pulse)
         * - The instruments per track
         * - The note number (transpose value)
         * - The tracks to include
-        * Return the modified list of midi events.
+        * - The pause time to start at
+        *
+        * The options tempo replaces the first tempo of the song, and the
+        * later tempo changes are scaled by the same ratio, so a song that
+        * speeds up or slows down still does so.
         */
-       private List<MidiEvent>[]
+       MidiEventPipeline
        ApplyOptionsToEvents(MidiOptions options) {
-           int i;
            if (trackPerChannel) {
                return ApplyOptionsPerChannel(options);
            }
@@ -1041,16 +1048,16 @@ import java.util.List;
             * midi file has tracks without notes. Re-compute the instruments, and 
             * tracks to keep.
             */
-           int num_tracks = events.Length;
+           int num_tracks = events.length;
            int[] instruments = new int[num_tracks];
-           bool[] keeptracks = new bool[num_tracks];
-           for (i = 0; i < num_tracks; i++) {
+           boolean[] keeptracks = new boolean[num_tracks];
+           for (int i = 0; i < num_tracks; i++) {
                instruments[i] = 0;
                keeptracks[i] = true;
            }
-           for (int tracknum = 0; tracknum < tracks.Count; tracknum++) {
-               MidiTrack track = tracks[tracknum];
-               int realtrack = track.Number;
+           for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+               MidiTrack track = tracks.get(tracknum);
+               int realtrack = track.getNumber();
                instruments[realtrack] = options.instruments[tracknum];
                if (options.tracks[tracknum] == false || 
                    options.mute[tracknum] == true) {
@@ -1058,58 +1065,20 @@ import java.util.List;
                }
            }
 
-           List<MidiEvent>[] newevents = CloneMidiEvents(events);
-
-           /* Set the tempo at the beginning of each track */
-           for (int tracknum = 0; tracknum < newevents.Length; tracknum++) {
-               MidiEvent mevent = CreateTempoEvent(options.tempo);
-               newevents[tracknum].Insert(0, mevent);
-           }
-
-           /* Change the note number (transpose), instrument, and tempo */
-           for (int tracknum = 0; tracknum < newevents.Length; tracknum++) {
-        	   for (MidiEvent mevent : newevents[tracknum]) {
-                   int num = Notenumber + options.transpose;
-                   if (num < 0)
-                       num = 0;
-                   if (num > 127)
-                       num = 127;
-                   Notenumber = (char)num;
-                   if (!options.useDefaultInstruments) {
-                       Instrument = (char)instruments[tracknum];
-                   }
-                   Tempo = options.tempo;
-               }
-           }
-
-           if (options.pauseTime != 0) {
-               newevents = StartAtPauseTime(newevents, options.pauseTime);
-           }
-
-           /* Change the tracks to include */
-           int count = 0;
-           for (int tracknum = 0; tracknum < keeptracks.Length; tracknum++) {
-               if (keeptracks[tracknum]) {
-                   count++;
-               }
-           }
-           List<MidiEvent>[] result = new List<MidiEvent>[count];
-           i = 0;
-           for (int tracknum = 0; tracknum < keeptracks.Length; tracknum++) {
-               if (keeptracks[tracknum]) {
-                   result[i] = newevents[tracknum];
-                   i++;
-               }
-           }
-           return result;
+           MidiEventPipeline pipeline = new MidiEventPipeline(events);
+           pipeline.SetStartTempo(options.tempo);
+           pipeline.Add(new MidiEventStage.TrackFilter(keeptracks));
+           AddSoundStages(pipeline, options, instruments, false);
+           return pipeline;
        }
 
-       /* Apply the following sound options to the midi events:
+       /* Return a pipeline that applies the following sound options to
+        * the midi events, as they are read:
         * - The tempo (the microseconds per pulse)
         * - The instruments per track
         * - The note number (transpose value)
         * - The tracks to include
-        * Return the modified list of midi events.
+        * - The pause time to start at
         *
         * This Midi file only has one actual track, but we've split that
         * into multiple fake tracks, one per channel, and displayed that
@@ -1120,20 +1089,20 @@ import java.util.List;
         * - We include/exclude channels, not tracks.
         * - We exclude a channel by setting the note volume/velocity to 0.
         */
-       private List<MidiEvent>[]
+       private MidiEventPipeline
        ApplyOptionsPerChannel(MidiOptions options) {
            /* Determine which channels to include/exclude.
             * Also, determine the instruments for each channel.
             */
            int[] instruments = new int[16];
-           bool[] keepchannel = new bool[16];
+           boolean[] keepchannel = new boolean[16];
            for (int i = 0; i < 16; i++) {
                instruments[i] = 0;
                keepchannel[i] = true;
            }
-           for (int tracknum = 0; tracknum < tracks.Count; tracknum++) {
-               MidiTrack track = tracks[tracknum];
-               int channel = track.Notes[0].Channel;
+           for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+               MidiTrack track = tracks.get(tracknum);
+               int channel = track.getNotes().get(0).getChannel();
                instruments[channel] = options.instruments[tracknum];
                if (options.tracks[tracknum] == false ||
                    options.mute[tracknum] == true) {
@@ -1141,50 +1110,55 @@ import java.util.List;
                    keepchannel[channel] = false;
                }
            }
-           
-           List<MidiEvent>[] newevents = CloneMidiEvents(events);
-
-           /* Set the tempo at the beginning of each track */
-           for (int tracknum = 0; tracknum < newevents.Length; tracknum++) {
-               MidiEvent mevent = CreateTempoEvent(options.tempo);
-               newevents[tracknum].Insert(0, mevent);
-           }
-
-           /* Change the note number (transpose), instrument, and tempo */
-           for (int tracknum = 0; tracknum < newevents.Length; tracknum++) {
-        	   for (MidiEvent mevent : newevents[tracknum]) {
-                   int num = Notenumber + options.transpose;
-                   if (num < 0)
-                       num = 0;
-                   if (num > 127)
-                       num = 127;
-                   Notenumber = (char)num;
-                   if (!keepchannel[Channel]) {
-                       Velocity = 0;
-                   }
-                   if (!options.useDefaultInstruments) {
-                       Instrument = (char)instruments[Channel];
-                   }
-                   Tempo = options.tempo;
-               }
+
+           MidiEventPipeline pipeline = new MidiEventPipeline(events);
+           pipeline.SetStartTempo(options.tempo);
+           pipeline.Add(new MidiEventStage.ChannelMute(keepchannel));
+           AddSoundStages(pipeline, options, instruments, true);
+           return pipeline;
+       }
+
+       /** Add the stages for the transpose, instruments, tempo and pause
+        *  time.  Stages that would change nothing are left out.
+        */
+       private void AddSoundStages(MidiEventPipeline pipeline, MidiOptions options,
+                                   int[] instruments, boolean bychannel) {
+           if (options.transpose != 0) {
+               pipeline.Add(new MidiEventStage.Transpose(options.transpose));
+           }
+           if (!options.useDefaultInstruments) {
+               pipeline.Add(new MidiEventStage.InstrumentOverride(instruments, bychannel));
+           }
+           if (options.tempo != timesig.getTempo()) {
+               pipeline.Add(new MidiEventStage.TempoScale(timesig.getTempo(), options.tempo));
            }
            if (options.pauseTime != 0) {
-               newevents = StartAtPauseTime(newevents, options.pauseTime);
+               pipeline.Add(new MidiEventStage.StartAtPulse(options.pauseTime));
            }
-           return newevents;
        }
 
 
        /** Apply the given sheet music options to the MidiNotes.
         *  Return the midi tracks with the changes applied.
+        *
+        *  The changes are made in stages, and the tracks after each stage
+        *  are kept, together with the options the stage depends on.  When
+        *  the options change, only the stage that depends on the first
+        *  changed option, and the stages after it, are run again.  Options
+        *  that don't change the notes (such as the colors or note letters)
+        *  don't run any stage.  Each stage works on a Clone() of the tracks
+        *  before it, which shares the note arrays until the stage changes
+        *  them.
         */
-       public List<MidiTrack> ChangeMidiNotes(MidiOptions options) {
-           List<MidiTrack> newtracks = new List<MidiTrack>();
-
-           for (int track = 0; track < tracks.Count; track++) {
-               if (options.tracks[track]) {
-                   newtracks.Add(tracks[track].Clone() );
-               }
+       public synchronized List<MidiTrack> ChangeMidiNotes(MidiOptions options) {
+           if (stageKeys == null) {
+               stageKeys = new String[StageCount];
+               stageTracks = new ArrayList<List<MidiTrack>>(
+                   Collections.nCopies(StageCount, (List<MidiTrack>) null));
+           }
+           TimeSignature time = timesig;
+           if (options.time != null) {
+               time = options.time;
            }
 
            /* To make the sheet music look nicer, we round the start times
@@ -1192,24 +1166,97 @@ import java.util.List;
             * also extend the note durations, so that we have longer notes
             * and fewer rest symbols.
             */
-           TimeSignature time = timesig;
-           if (options.time != null) {
-               time = options.time;
+           String key = Arrays.toString(options.tracks) + " " + options.combineInterval;
+           List<MidiTrack> newtracks = CachedStage(StageRoundStartTimes, key);
+           if (newtracks == null) {
+               newtracks = new ArrayList<MidiTrack>();
+               for (int track = 0; track < tracks.size(); track++) {
+                   if (options.tracks[track]) {
+                       newtracks.add(tracks.get(track).Clone());
+                   }
+               }
+               MidiFile.RoundStartTimes(newtracks, options.combineInterval, tempos);
+               SetStage(StageRoundStartTimes, key, newtracks);
+           }
+
+           key += " " + time.getQuarter();
+           List<MidiTrack> prevtracks = newtracks;
+           newtracks = CachedStage(StageRoundDurations, key);
+           if (newtracks == null) {
+               newtracks = CloneTracks(prevtracks);
+               MidiFile.RoundDurations(newtracks, time.getQuarter());
+               SetStage(StageRoundDurations, key, newtracks);
+           }
+
+           key += " " + options.twoStaffs;
+           prevtracks = newtracks;
+           newtracks = CachedStage(StageTwoStaffs, key);
+           if (newtracks == null) {
+               newtracks = prevtracks;
+               if (options.twoStaffs) {
+                   newtracks = MidiFile.CombineToTwoTracks(CloneTracks(prevtracks),
+                                                          timesig.getMeasure());
+               }
+               SetStage(StageTwoStaffs, key, newtracks);
            }
-           MidiFile.RoundStartTimes(newtracks, options.combineInterval, timesig);
-           MidiFile.RoundDurations(newtracks, time.Quarter);
 
-           if (options.twoStaffs) {
-               newtracks = MidiFile.CombineToTwoTracks(newtracks, timesig.Measure);
+           key += " " + options.shifttime;
+           prevtracks = newtracks;
+           newtracks = CachedStage(StageShiftTime, key);
+           if (newtracks == null) {
+               newtracks = prevtracks;
+               if (options.shifttime != 0) {
+                   newtracks = CloneTracks(prevtracks);
+                   MidiFile.ShiftTime(newtracks, options.shifttime);
+               }
+               SetStage(StageShiftTime, key, newtracks);
            }
-           if (options.shifttime != 0) {
-               MidiFile.ShiftTime(newtracks, options.shifttime);
+
+           key += " " + options.transpose;
+           prevtracks = newtracks;
+           newtracks = CachedStage(StageTranspose, key);
+           if (newtracks == null) {
+               newtracks = prevtracks;
+               if (options.transpose != 0) {
+                   newtracks = CloneTracks(prevtracks);
+                   MidiFile.Transpose(newtracks, options.transpose);
+               }
+               SetStage(StageTranspose, key, newtracks);
            }
-           if (options.transpose != 0) {
-               MidiFile.Transpose(newtracks, options.transpose);
+
+           /* The caller may change the tracks, so don't return the cached ones */
+           return CloneTracks(newtracks);
+       }
+
+       /** Return the tracks kept for the given stage of ChangeMidiNotes,
+        * or null if the stage was last run with different options.
+        */
+       private List<MidiTrack> CachedStage(int stage, String key) {
+           if (key.equals(stageKeys[stage])) {
+               return stageTracks.get(stage);
+           }
+           return null;
+       }
+
+       /** Keep the tracks computed by the given stage of ChangeMidiNotes.
+        * The later stages are dropped, since they depend on this one.
+        */
+       private void SetStage(int stage, String key, List<MidiTrack> newtracks) {
+           stageKeys[stage] = key;
+           stageTracks.set(stage, newtracks);
+           for (int later = stage + 1; later < StageCount; later++) {
+               stageKeys[later] = null;
+               stageTracks.set(later, null);
            }
+       }
 
-           return newtracks;
+       /** Return a Clone() of each of the given tracks */
+       private static List<MidiTrack> CloneTracks(List<MidiTrack> tracks) {
+           List<MidiTrack> result = new ArrayList<MidiTrack>(tracks.size());
+           for (MidiTrack track : tracks) {
+               result.add(track.Clone());
+           }
+           return result;
        }
 
 
@@ -1219,9 +1266,10 @@ import java.util.List;
        public static void
        ShiftTime(List<MidiTrack> tracks, int amount)
        {
-    	   for (MidiTrack track : tracks) {
-    		   for (MidiNote note : track.Notes) {
-                   note.StartTime += amount;
+           for (MidiTrack track : tracks) {
+               NoteTable notes = track.getNoteTable();
+               for (int i = 0; i < notes.Count(); i++) {
+                   notes.setStartTime(i, notes.getStartTime(i) + amount);
                }
            }
        }
@@ -1230,107 +1278,51 @@ import java.util.List;
        public static void
        Transpose(List<MidiTrack> tracks, int amount)
        {
-    	   for (MidiTrack track : tracks) {
-    		   for (MidiNote note : track.Notes) {
-                   note.Number += amount;
-                   if (note.Number < 0) {
-                       note.Number = 0;
+           for (MidiTrack track : tracks) {
+               NoteTable notes = track.getNoteTable();
+               for (int i = 0; i < notes.Count(); i++) {
+                   int number = notes.getNoteNumber(i) + amount;
+                   if (number < 0) {
+                       number = 0;
                    }
+                   notes.setNoteNumber(i, number);
                }
            }
        }
 
-      
-       /* Find the highest and lowest notes that overlap this interval (starttime to endtime).
-        * This method is used by SplitTrack to determine which staff (top or bottom) a note
-        * should go to.
-        *
-        * For more accurate SplitTrack() results, we limit the interval/duration of this note 
-        * (and other notes) to one measure. We care only about high/low notes that are
-        * reasonably close to this note.
-        */
-       private static void
-       FindHighLowNotes(List<MidiNote> notes, int measurelen, int startindex, 
-                        int starttime, int endtime, ref int high, ref int low) {
-
-           int i = startindex;
-           if (starttime + measurelen < endtime) {
-               endtime = starttime + measurelen;
-           }
-
-           while (i < notes.Count && notes[i].StartTime < endtime) {
-               if (notes[i].EndTime < starttime) {
-                   i++;
-                   continue;
-               }
-               if (notes[i].StartTime + measurelen < starttime) {
-                   i++;
-                   continue;
-               }
-               if (high < notes[i].Number) {
-                   high = notes[i].Number;
-               }
-               if (low > notes[i].Number) {
-                   low = notes[i].Number;
-               }
-               i++;
-           }
-       }
-
-       /* Find the highest and lowest notes that start at this exact start time */
-       private static void
-       FindExactHighLowNotes(List<MidiNote> notes, int startindex, int starttime,
-                             ref int high, ref int low) {
-
-           int i = startindex;
-
-           while (notes[i].StartTime < starttime) {
-               i++;
-           }
-
-           while (i < notes.Count && notes[i].StartTime == starttime) {
-               if (high < notes[i].Number) {
-                   high = notes[i].Number;
-               }
-               if (low > notes[i].Number) {
-                   low = notes[i].Number;
-               }
-               i++;
-           }
-       }
 
-
-    
        /* Split the given MidiTrack into two tracks, top and bottom.
         * The highest notes will go into top, the lowest into bottom.
         * This function is used to split piano songs into left-hand (bottom)
         * and right-hand (top) tracks.
+        *
+        * For each note we need the highest and lowest notes that overlap
+        * it (limited to one measure), and the highest and lowest notes that
+        * start at exactly the same time.  HighLowNotes keeps these up to
+        * date as we move through the notes, instead of scanning every
+        * note in the window for each note.
         */
        public static List<MidiTrack> SplitTrack(MidiTrack track, int measurelen) {
-           List<MidiNote> notes = track.Notes;
-           int count = notes.Count;
+           NoteTable notes = track.getNoteTable();
+           int count = notes.Count();
 
            MidiTrack top = new MidiTrack(1);
            MidiTrack bottom = new MidiTrack(2);
-           List<MidiTrack> result = new List<MidiTrack>(2);
-           result.Add(top); result.Add(bottom);
+           List<MidiTrack> result = new ArrayList<MidiTrack>(2);
+           result.add(top); result.add(bottom);
 
            if (count == 0)
                return result;
 
+           NoteTable topnotes = top.getNoteTable();
+           NoteTable bottomnotes = bottom.getNoteTable();
+           HighLowNotes window = new HighLowNotes(notes, measurelen);
+
            int prevhigh  = 76; /* E5, top of treble staff */
            int prevlow   = 45; /* A3, bottom of bass staff */
-           int startindex = 0;
 
-           for (MidiNote note : notes) {
-               int high, low, highExact, lowExact;
-               
-               int number = note.Number;
-               high = low = highExact = lowExact = number;
-
-               while (notes[startindex].EndTime < note.StartTime) {
-                   startindex++;
-               }
+           for (int i = 0; i < count; i++) {
+               int number = notes.getNoteNumber(i);
 
                /* I've tried several algorithms for splitting a track : two,
                 * and the one below seems to work the best:
@@ -1345,50 +1337,33 @@ import java.util.List;
                 * - Else, look at the previous high/low notes that were more than an 
                 *   octave apart.  Choose the closeset note.
                 */
-               FindHighLowNotes(notes, measurelen, startindex, note.StartTime, note.EndTime, 
-                                ref high, ref low);
-               FindExactHighLowNotes(notes, startindex, note.StartTime,
-                                     ref highExact, ref lowExact);
+               window.Find(i);
+               int high = window.getHigh();
+               int low = window.getLow();
+               int highExact = window.getHighExact();
+               int lowExact = window.getLowExact();
 
+               boolean totop;
                if (highExact - number > 12 || number - lowExact > 12) {
-                   if (highExact - number <= number - lowExact) {
-                       top.AddNote(note);
-                   }
-                   else {
-                       bottom.AddNote(note);
-                   }
+                   totop = (highExact - number <= number - lowExact);
                } 
                else if (high - number > 12 || number - low > 12) {
-                   if (high - number <= number - low) {
-                       top.AddNote(note);
-                   }
-                   else {
-                       bottom.AddNote(note);
-                   }
+                   totop = (high - number <= number - low);
                } 
                else if (highExact - lowExact > 12) {
-                   if (highExact - number <= number - lowExact) {
-                       top.AddNote(note);
-                   }
-                   else {
-                       bottom.AddNote(note);
-                   }
+                   totop = (highExact - number <= number - lowExact);
                }
                else if (high - low > 12) {
-                   if (high - number <= number - low) {
-                       top.AddNote(note);
-                   }
-                   else {
-                       bottom.AddNote(note);
-                   }
+                   totop = (high - number <= number - low);
                }
                else {
-                   if (prevhigh - number <= number - prevlow) {
-                       top.AddNote(note);
-                   }
-                   else {
-                       bottom.AddNote(note);
-                   }
+                   totop = (prevhigh - number <= number - prevlow);
+               }
+               if (totop) {
+                   topnotes.Add(notes, i);
+               }
+               else {
+                   bottomnotes.Add(notes, i);
                }
 
                /* The prevhigh/prevlow are set to the last high/low
@@ -1400,8 +1375,8 @@ import java.util.List;
                }
            }
 
-           top.Notes.Sort(track.Notes[0]);
-           bottom.Notes.Sort(track.Notes[0]);
+           topnotes.Sort();
+           bottomnotes.Sort();
 
            return result;
        }
@@ -1409,70 +1384,64 @@ import java.util.List;
 
        /** Combine the notes : the given tracks into a single MidiTrack. 
         *  The individual tracks are already sorted.  To merge them, we
-        *  use a mergesort-like algorithm.
+        *  keep a heap of the tracks, ordered by their next note, so any
+        *  number of tracks can be merged in O(N log T) time.
         */
        public static MidiTrack CombineToSingleTrack(List<MidiTrack> tracks)
        {
            /* Add all notes into one track */
            MidiTrack result = new MidiTrack(1);
+           NoteTable combined = result.getNoteTable();
 
-           if (tracks.Count == 0) {
+           if (tracks.size() == 0) {
                return result;
            }
-           else if (tracks.Count == 1) {
-               MidiTrack track = tracks[0];
-               for (MidiNote note : track.Notes) {
-                   result.AddNote(note);
+           else if (tracks.size() == 1) {
+               NoteTable notes = tracks.get(0).getNoteTable();
+               for (int i = 0; i < notes.Count(); i++) {
+                   combined.Add(notes, i);
                }
                return result;
            }
 
-           int[] noteindex = new int[64];
-           int[] notecount = new int[64];
-
-           for (int tracknum = 0; tracknum < tracks.Count; tracknum++) {
-               noteindex[tracknum] = 0;
-               notecount[tracknum] = tracks[tracknum].Notes.Count;
+           int numtracks = tracks.size();
+           NoteTable[] tables = new NoteTable[numtracks];
+           int[] next = new int[numtracks];   /* The next note of each track */
+           int[] heap = new int[numtracks];   /* The track numbers, as a heap */
+           int heapsize = 0;
+           for (int t = 0; t < numtracks; t++) {
+               tables[t] = tracks.get(t).getNoteTable();
+               if (tables[t].Count() > 0) {
+                   heap[heapsize++] = t;
+               }
            }
-           MidiNote prevnote = null;
-           while (true) {
-               MidiNote lowestnote = null;
-               int lowestTrack = -1;
-               for (int tracknum = 0; tracknum < tracks.Count; tracknum++) {
-                   MidiTrack track = tracks[tracknum];
-                   if (noteindex[tracknum] >= notecount[tracknum]) {
-                       continue;
-                   }
-                   MidiNote note = track.Notes[ noteindex[tracknum] ];
-                   if (lowestnote == null) {
-                       lowestnote = note;
-                       lowestTrack = tracknum;
-                   }
-                   else if (note.StartTime < lowestnote.StartTime) {
-                       lowestnote = note;
-                       lowestTrack = tracknum;
-                   }
-                   else if (note.StartTime == lowestnote.StartTime && note.Number < lowestnote.Number) {
-                       lowestnote = note;
-                       lowestTrack = tracknum;
-                   }
+           for (int i = heapsize / 2 - 1; i >= 0; i--) {
+               SiftDown(heap, heapsize, i, tables, next);
+           }
+
+           int prevnote = -1;
+           while (heapsize > 0) {
+               int lowestTrack = heap[0];
+               NoteTable notes = tables[lowestTrack];
+               int lowestnote = next[lowestTrack]++;
+               if (next[lowestTrack] == notes.Count()) {
+                   heap[0] = heap[--heapsize];
                }
-               if (lowestnote == null) {
-                   /* We've finished the merge */
-                   break;
+               if (heapsize > 0) {
+                   SiftDown(heap, heapsize, 0, tables, next);
                }
-               noteindex[lowestTrack]++;
-               if ((prevnote != null) && (prevnote.StartTime == lowestnote.StartTime) &&
-                   (prevnote.Number == lowestnote.Number) ) {
+
+               if ((prevnote >= 0) &&
+                   (combined.getStartTime(prevnote) == notes.getStartTime(lowestnote)) &&
+                   (combined.getNoteNumber(prevnote) == notes.getNoteNumber(lowestnote)) ) {
 
                    /* Don't add duplicate notes, with the same start time and number */        
-                   if (lowestnote.Duration > prevnote.Duration) {
-                       prevnote.Duration = lowestnote.Duration;
+                   if (notes.getDuration(lowestnote) > combined.getDuration(prevnote)) {
+                       combined.setDuration(prevnote, notes.getDuration(lowestnote));
                    }
                }
                else {
-                   result.AddNote(lowestnote);
-                   prevnote = lowestnote;
+                   prevnote = combined.Add(notes, lowestnote);
                }
            }
        
@@ -1493,34 +1462,39 @@ import java.util.List;
            MidiTrack single = CombineToSingleTrack(tracks);
            List<MidiTrack> result = SplitTrack(single, measurelen);
 
-           List<MidiEvent> lyrics = new List<MidiEvent>();
+           List<MidiEvent> lyrics = new ArrayList<MidiEvent>();
            for (MidiTrack track : tracks) {
-               if (track.Lyrics != null) {
-                   lyrics.AddRange(track.Lyrics);
+               if (track.getLyrics() != null) {
+                   lyrics.addAll(track.getLyrics());
                }
            }
-           if (lyrics.Count > 0) {
-               lyrics.Sort(lyrics[0]);
-               result[0].Lyrics = lyrics;
+           if (lyrics.size() > 0) {
+               Collections.sort(lyrics);
+               result.get(0).setLyrics(lyrics);
            } 
 
            return result;
        }
 
 
-       /** Check that the MidiNote start times are : increasing order.
-        * This is for debugging purposes.
+       /** Return true if the notes of each track are in MidiNote order:
+        * by start time, and by note number within the same start time.
+        * This is for debugging purposes, so it is only called in an
+        * assert, and costs nothing unless assertions are enabled.
         */
-       private static void CheckStartTimes(List<MidiTrack> tracks) {
-    	   for (MidiTrack track : tracks) {
-               int prevtime = -1;
-               for (MidiNote note : track.Notes) {
-                   if (note.StartTime < prevtime) {
-                       throw new System.ArgumentException("start times not : increasing order");
+       private static boolean CheckStartTimes(List<MidiTrack> tracks) {
+           for (MidiTrack track : tracks) {
+               NoteTable notes = track.getNoteTable();
+               for (int i = 1; i < notes.Count(); i++) {
+                   int prevtime = notes.getStartTime(i-1);
+                   if (notes.getStartTime(i) < prevtime ||
+                       (notes.getStartTime(i) == prevtime &&
+                        notes.getNoteNumber(i) < notes.getNoteNumber(i-1))) {
+                       return false;
                    }
-                   prevtime = note.StartTime;
                }
            }
+           return true;
        }
 
 
@@ -1537,48 +1511,164 @@ import java.util.List;
         * We want to align notes with approximately the same start times.
         * So, this function is used to assign the same starttime for notes
         * that are close together (timewise).
+        *
+        * The notes of each track must be in MidiNote order, as parse()
+        * leaves them.  Each rounded note is moved back into place, so the
+        * tracks are still in that order afterwards.
         */
        public static void
-       RoundStartTimes(List<MidiTrack> tracks, int millisec, TimeSignature time) {
+       RoundStartTimes(List<MidiTrack> tracks, int millisec, TempoMap tempos) {
            /* Get all the starttimes : all tracks, : sorted order */
-           List<int> starttimes = new List<int>();
-           for (MidiTrack track : tracks) {
-        	   for (MidiNote note : track.Notes) {
-                   starttimes.Add( note.StartTime );
-               }
-           }
-           starttimes.Sort();
+           assert CheckStartTimes(tracks);
+           int[] starttimes = MergeStartTimes(tracks);
+           int count = starttimes.length;
 
-           /* Notes within "millisec" milliseconds apart will be combined. */
-           int interval = time.Quarter * millisec * 1000 / time.Tempo;
+           /* Notes within "millisec" milliseconds apart will be combined.
+            * The interval (in pulses) follows the tempo at each start time.
+            */
+           long micros = millisec * 1000L;
 
-           /* If two starttimes are within interval millisec, make them the same */
-           for (int i = 0; i < starttimes.Count - 1; i++) {
+           /* If two starttimes are within interval millisec, make them the same.
+            * Equal start times have the same interval, so it is only
+            * looked up when the start time changes.
+            */
+           int interval = 0;
+           for (int i = 0; i < count - 1; i++) {
+               if (i == 0 || starttimes[i] != starttimes[i-1]) {
+                   interval = tempos.PulsesInInterval(starttimes[i], micros);
+               }
                if (starttimes[i+1] - starttimes[i] <= interval) {
                    starttimes[i+1] = starttimes[i];
                }
            }
 
-           CheckStartTimes(tracks);
-
            /* Adjust the note starttimes, so that it matches one of the starttimes values */
-           foreach (MidiTrack track : tracks) {
+           for (MidiTrack track : tracks) {
+               NoteTable notes = track.getNoteTable();
                int i = 0;
+               int prevstart = -1;
 
-               for (MidiNote note : track.Notes) {
-                   while (i < starttimes.Count &&
-                          note.StartTime - interval > starttimes[i]) {
+               for (int n = 0; n < notes.Count(); n++) {
+                   int start = notes.getStartTime(n);
+                   if (start != prevstart) {
+                       interval = tempos.PulsesInInterval(start, micros);
+                       prevstart = start;
+                   }
+                   while (i < count &&
+                          start - interval > starttimes[i]) {
                        i++;
                    }
 
-                   if (note.StartTime > starttimes[i] &&
-                       note.StartTime - starttimes[i] <= interval) {
+                   if (i < count && start > starttimes[i] &&
+                       start - starttimes[i] <= interval) {
+
+                       /* Rounding moves the note back to the start of its
+                        * cluster.  The notes before it are normally sorted,
+                        * so it only has to pass the notes of the cluster
+                        * with a higher note number.
+                        */
+                       notes.setStartTime(n, starttimes[i]);
+                       notes.MoveBack(n);
+                   }
+               }
+           }
+       }
+
+       /** Return the start times of the notes of all the tracks, in sorted
+        * order.  Each track is already sorted, so the tracks are merged,
+        * using a heap of the tracks ordered by their next start time.
+        */
+       static int[] MergeStartTimes(List<MidiTrack> tracks) {
+           int numtracks = tracks.size();
+           NoteTable[] tables = new NoteTable[numtracks];
+           int[] next = new int[numtracks];   /* The next note of each track */
+           int[] heap = new int[numtracks];   /* The track numbers, as a heap */
+           int heapsize = 0;
+           int count = 0;
+           for (int t = 0; t < numtracks; t++) {
+               tables[t] = tracks.get(t).getNoteTable();
+               count += tables[t].Count();
+               if (tables[t].Count() > 0) {
+                   heap[heapsize++] = t;
+               }
+           }
+           for (int i = heapsize / 2 - 1; i >= 0; i--) {
+               SiftDown(heap, heapsize, i, tables, next);
+           }
+
+           int[] result = new int[count];
+           int n = 0;
+           while (heapsize > 0) {
+               int t = heap[0];
+               NoteTable table = tables[t];
+               int end = table.Count();
+               int i = next[t];
 
-                       note.StartTime = starttimes[i];
+               /* Take notes from this track while it stays the smallest */
+               int limit = Integer.MAX_VALUE;
+               if (heapsize > 1) {
+                   limit = tables[heap[1]].getStartTime(next[heap[1]]);
+                   if (heapsize > 2) {
+                       limit = Math.min(limit, tables[heap[2]].getStartTime(next[heap[2]]));
                    }
                }
-               track.Notes.Sort(track.Notes[0]);
+               do {
+                   result[n++] = table.getStartTime(i++);
+               } while (i < end && table.getStartTime(i) <= limit);
+
+               next[t] = i;
+               if (i == end) {
+                   heap[0] = heap[--heapsize];
+               }
+               if (heapsize > 0) {
+                   SiftDown(heap, heapsize, 0, tables, next);
+               }
            }
+           return result;
+       }
+
+       /** Move heap[i] down the heap of tracks, until its next note comes
+        * before the next notes of its children.  The notes are ordered by
+        * start time, then note number, then track number, so that the
+        * merge is stable.
+        */
+       private static void
+       SiftDown(int[] heap, int heapsize, int i, NoteTable[] tables, int[] next) {
+           int t = heap[i];
+           while (true) {
+               int child = 2*i + 1;
+               if (child >= heapsize) {
+                   break;
+               }
+               if (child + 1 < heapsize &&
+                   NoteBefore(heap[child+1], heap[child], tables, next)) {
+                   child++;
+               }
+               if (!NoteBefore(heap[child], t, tables, next)) {
+                   break;
+               }
+               heap[i] = heap[child];
+               i = child;
+           }
+           heap[i] = t;
+       }
+
+       /** Return true if the next note of track t1 comes before the next
+        * note of track t2.
+        */
+       private static boolean
+       NoteBefore(int t1, int t2, NoteTable[] tables, int[] next) {
+           int start1 = tables[t1].getStartTime(next[t1]);
+           int start2 = tables[t2].getStartTime(next[t2]);
+           if (start1 != start2) {
+               return start1 < start2;
+           }
+           int number1 = tables[t1].getNoteNumber(next[t1]);
+           int number2 = tables[t2].getNoteNumber(next[t2]);
+           if (number1 != number2) {
+               return number1 < number2;
+           }
+           return t1 < t2;
        }
 
 
@@ -1594,23 +1684,34 @@ import java.util.List;
        public static void
        RoundDurations(List<MidiTrack> tracks, int quarternote) {
 
-    	   for (MidiTrack track : tracks ) {
-               MidiNote prevNote = null;
-               for (int i = 0; i < track.Notes.Count-1; i++) {
-                   MidiNote note1 = track.Notes[i];
-                   if (prevNote == null) {
-                       prevNote = note1;
-                   }
+           for (MidiTrack track : tracks ) {
+               NoteTable notes = track.getNoteTable();
+               int count = notes.Count();
+               if (count == 0) {
+                   continue;
+               }
 
-                   /* Get the next note that has a different start time */
-                   MidiNote note2 = note1;
-                   for (int j = i+1; j < track.Notes.Count; j++) {
-                       note2 = track.Notes[j];
-                       if (note1.StartTime < note2.StartTime) {
-                           break;
-                       }
+               /* nextstart[i] is the next note after note i that has a
+                * different start time (or the last note, if there is none).
+                * It is found in one backward pass, so that the notes of a
+                * chord don't each search past the rest of the chord.
+                */
+               int[] nextstart = new int[count];
+               nextstart[count-1] = count-1;
+               for (int i = count-2; i >= 0; i--) {
+                   if (notes.getStartTime(i) < notes.getStartTime(i+1)) {
+                       nextstart[i] = i+1;
                    }
-                   int maxduration = note2.StartTime - note1.StartTime;
+                   else {
+                       nextstart[i] = nextstart[i+1];
+                   }
+               }
+
+               int prevNote = 0;
+               for (int i = 0; i < count-1; i++) {
+                   int start = notes.getStartTime(i);
+                   int duration = notes.getDuration(i);
+                   int maxduration = notes.getStartTime(nextstart[i]) - start;
 
                    int dur = 0;
                    if (quarternote <= maxduration)
@@ -1623,133 +1724,119 @@ import java.util.List;
                        dur = quarternote/4;
 
 
-                   if (dur < note1.Duration) {
-                       dur = note1.Duration;
+                   if (dur < duration) {
+                       dur = duration;
                    }
 
                    /* Special case: If the previous note's duration
                     * matches this note's duration, we can make a notepair.
                     * So don't expand the duration : that case.
                     */
-                   if ((prevNote.StartTime + prevNote.Duration == note1.StartTime) &&
-                       (prevNote.Duration == note1.Duration)) {
+                   int prevDuration = notes.getDuration(prevNote);
+                   if ((notes.getStartTime(prevNote) + prevDuration == start) &&
+                       (prevDuration == duration)) {
 
-                       dur = note1.Duration;
+                       dur = duration;
                    }
-                   note1.Duration = dur;
-                   if (track.Notes[i+1].StartTime != note1.StartTime) {
-                       prevNote = note1;
+                   if (dur != duration) {
+                       notes.setDuration(i, dur);
                    }
-               }
-           }
-       }
-
-       /** Split the given track into multiple tracks, separating each
-        * channel into a separate track.
-        */
-       private static List<MidiTrack> 
-       SplitChannels(MidiTrack origtrack, List<MidiEvent> events) {
-
-           /* Find the instrument used for each channel */
-           int[] channelInstruments = new int[16];
-           for (MidiEvent mevent : events) {
-               if (mevent.EventFlag == EventProgramChange) {
-                   channelInstruments[Channel] = Instrument;
-               }
-           }
-           channelInstruments[9] = 128; /* Channel 9 = Percussion */
-
-           List<MidiTrack> result = new ArrayList<MidiTrack>();
-           for (MidiNote note : origtrack.getNotes()) {
-               boolean foundchannel = false;
-               for (MidiTrack track : result) {
-                   if (note.getChannel() == track.getNotes().get(0).getChannel()) {
-                       foundchannel = true;
-                       track.AddNote(note); 
+                   if (notes.getStartTime(i+1) != start) {
+                       prevNote = i;
                    }
                }
-               if (!foundchannel) {
-                   MidiTrack track = new MidiTrack(result.size() + 1);
-                   track.AddNote(note);
-                   track.setInstrument(channelInstruments[note.getChannel()]);
-                   result.add(track);
-               }
            }
-           return result;
        }
 
-
        /** Guess the measure length.  We assume that the measure
         * length must be between 0.5 seconds and 4 seconds.
-        * Take all the note start times that fall between 0.5 and 
-        * 4 seconds, and return the starttimes.
+        *
+        * Music tends to repeat itself every measure, so we count the notes
+        * starting at each time (a histogram of note onsets), and compute its
+        * autocorrelation: how well the onsets line up with themselves when
+        * shifted by each candidate length.  The lengths where the
+        * autocorrelation peaks are returned, best first.
         */
-       public List<int> 
+       public List<Integer>
        GuessMeasureLength() {
-           List<int> result = new List<int>();
-
-           int pulses_per_second = (int) (1000000.0 / timesig.Tempo * timesig.Quarter);
-           int minmeasure = pulses_per_second / 2;  /* The minimum measure length : pulses */
-           int maxmeasure = pulses_per_second * 4;  /* The maximum measure length : pulses */
+           List<Integer> result = new ArrayList<Integer>();
 
-           /* Get the start time of the first note : the midi file. */
-           int firstnote = timesig.Measure * 5;
+           /* Get the start and end time of the notes in the midi file. */
+           int firstnote = Integer.MAX_VALUE;
+           int lastnote = Integer.MIN_VALUE;
            for (MidiTrack track : tracks) {
-               if (firstnote > track.Notes[0].StartTime) {
-                   firstnote = track.Notes[0].StartTime;
+               NoteTable notes = track.getNoteTable();
+               if (notes.Count() > 0) {
+                   firstnote = Math.min(firstnote, notes.getStartTime(0));
+                   lastnote = Math.max(lastnote, notes.getStartTime(notes.Count()-1));
                }
            }
+           if (firstnote > lastnote) {
+               return result;
+           }
 
-           /* interval = 0.06 seconds, converted into pulses */
-           int interval = timesig.Quarter * 60000 / timesig.Tempo;
+           /* The measure lengths (in pulses) are measured from the first
+            * note, at the tempo in effect there.
+            */
+           int minmeasure = tempos.PulsesInInterval(firstnote, 500000);  /* The minimum measure length in pulses */
+           int maxmeasure = tempos.PulsesInInterval(firstnote, 4000000); /* The maximum measure length in pulses */
 
+           /* The onsets are counted in bins of 1/24 of a quarter note, so
+            * notes played slightly early or late still line up, and every
+            * usual measure length is a whole number of bins.
+            */
+           int bin = Math.max(1, timesig.getQuarter() / 24);
+           int[] onsets = new int[(lastnote - firstnote + bin/2) / bin + 1];
            for (MidiTrack track : tracks) {
-               int prevtime = 0;
-               for (MidiNote note : track.Notes) {
-                   if (note.StartTime - prevtime <= interval)
-                       continue;
-
-                   prevtime = note.StartTime;
+               NoteTable notes = track.getNoteTable();
+               for (int i = 0; i < notes.Count(); i++) {
+                   onsets[(notes.getStartTime(i) - firstnote + bin/2) / bin]++;
+               }
+           }
 
-                   int time_from_firstnote = note.StartTime - firstnote;
+           int minlag = Math.max(1, (minmeasure + bin - 1) / bin);
+           int maxlag = Math.min(maxmeasure / bin, onsets.length - 1);
+           if (minlag >= maxlag) {
+               return result;
+           }
+           double[] correlation = Autocorrelation.Compute(onsets, maxlag + 1);
 
-                   /* Round the time down to a multiple of 4 */
-                   time_from_firstnote = time_from_firstnote / 4 * 4;
-                   if (time_from_firstnote < minmeasure)
-                       continue;
-                   if (time_from_firstnote > maxmeasure)
-                       break;
+           /* Longer lags have fewer onsets to compare, so divide by the
+            * number of bins that overlap.  Keep only the peaks.
+            */
+           double[] score = new double[maxlag + 2];
+           for (int lag = minlag - 1; lag <= maxlag + 1 && lag < onsets.length; lag++) {
+               score[lag] = correlation[lag] / (onsets.length - lag);
+           }
+           List<Integer> peaks = new ArrayList<Integer>();
+           for (int lag = minlag; lag <= maxlag; lag++) {
+               if (score[lag] > 0 && score[lag] > score[lag-1] &&
+                   score[lag] >= score[lag+1]) {
+                   peaks.add(lag);
+               }
+           }
 
-                   if (!result.Contains(time_from_firstnote)) {
-                       result.Add(time_from_firstnote);
-                   }
+           /* Sort the peaks by score, best first */
+           final double[] scores = score;
+           Collections.sort(peaks, new Comparator<Integer>() {
+               public int compare(Integer x, Integer y) {
+                   return Double.compare(scores[y], scores[x]);
                }
+           });
+           for (int lag : peaks) {
+               result.add(lag * bin);
            }
-           result.Sort();
            return result;
        }
 
        /** Return the last start time */
        public int EndTime() {
-           int lastStart = 0;
-           for (MidiTrack track : tracks) {
-               if (track.Notes.Count == 0) {
-                   continue;
-               }
-               int last = track.Notes[ track.Notes.Count-1 ].StartTime;
-               lastStart = Math.Max(last, lastStart);
-           }
-           return lastStart;
+           return summary.getEndTime();
        }
 
        /** Return true if this midi file has lyrics */
        public boolean HasLyrics() {
-    	   for (MidiTrack track : tracks) {
-               if (track.Lyrics != null) {
-                   return true;
-               }
-           }
-           return false;
+           return summary.HasLyrics();
        }
 
        public override String ToString() {
@@ -0,0 +1,506 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * @class MidiFileCache The MidiFileCache keeps the parsed form of midi files
+ *        on disk, so that opening a song a second time skips the parsing.
+ * 
+ *        Each entry is a file in the cache directory, named after the CRC32,
+ *        the Adler32 and the length of the midi file content. A renamed or
+ *        copied song still hits the cache, and an edited song misses it.
+ * 
+ *        An entry holds the header fields, the time signature, the raw
+ *        MidiEventList of each track (written column by column) and the notes
+ *        of each MidiTrack. A hit reads the entry into memory, and the event
+ *        lists are rebuilt from its columns. Neither the song nor the entry
+ *        is memory-mapped, so both can be replaced or deleted at any time,
+ *        even while they are being read. The song is read once: the same
+ *        bytes are hashed and, on a miss, parsed.
+ * 
+ *        The header also holds a CRC32 of the rest of the entry, which is
+ *        checked before anything is rebuilt, and the notes are checked to be
+ *        in MidiNote order and in range while the NoteTables are rebuilt. An entry that
+ *        is damaged, or written by another version, is deleted and the song
+ *        is parsed again. When the entries use more than the
+ *        maximum size, the least recently used ones are deleted.
+ */
+public class MidiFileCache
+{
+   private File directory;
+   /** The directory holding the cache entries */
+   private long maxsize;
+
+   /** The maximum total size of the entries, in bytes */
+
+   /** The default maximum size of the cache */
+   public static final long DefaultMaxSize = 64L * 1024 * 1024;
+
+   /** The first bytes of every entry ("MSMC") */
+   private static final int Magic = 0x4D534D43;
+
+   /** The entry format version. Change it when the format changes. */
+   private static final int Version = 3;
+
+   /** The size of the fields before the body CRC32 covers the rest */
+   private static final int HeaderSize = 4 * 6;
+
+   /**
+    * The time of last use of an entry is only updated when older than this,
+    * in milliseconds, to save a file system write on most hits
+    */
+   private static final long TouchInterval = 60 * 1000;
+
+   /** The file name suffix of the entries */
+   private static final String Suffix = ".cache";
+
+   /**
+    * Create a MidiFileCache in the given directory, which is created if
+    * needed
+    */
+   public MidiFileCache(File directory, long maxsize)
+   {
+      this.directory = directory;
+      this.maxsize = maxsize;
+   }
+
+   /** Create a MidiFileCache in the given directory, with the default size */
+   public MidiFileCache(File directory)
+   {
+      this(directory, DefaultMaxSize);
+   }
+
+   /** Return the cache directory */
+   public File getDirectory()
+   {
+      return directory;
+   }
+
+   /**
+    * Return the MidiFile for the given file name, from the cache if possible.
+    * Otherwise parse the file, and add it to the cache. Problems with the
+    * cache itself are never reported: the song is simply parsed.
+    * 
+    * @throws MidiFileException
+    * @throws IOException
+    */
+   public MidiFile Open(String filename) throws MidiFileException,
+         IOException
+   {
+      File info = new File(filename);
+      if (!info.isFile() || info.length() == 0
+            || info.length() > Integer.MAX_VALUE)
+      {
+         /* Let MidiFile report the problem */
+         return new MidiFile(filename);
+      }
+
+      byte[] content = Load(info);
+      int length = content.length;
+      CRC32 crc = new CRC32();
+      crc.update(content, 0, length);
+      Adler32 adler = new Adler32();
+      adler.update(content, 0, length);
+      File entry = new File(directory, String.format("%08x%08x-%d%s",
+            crc.getValue(), adler.getValue(), length, Suffix));
+
+      long modified = entry.lastModified();
+      if (modified != 0)
+      {
+         MidiFile midifile = null;
+         try
+         {
+            midifile = Read(ByteBuffer.wrap(Load(entry)), filename,
+                  (int) crc.getValue(), (int) adler.getValue(), length);
+         }
+         catch (IOException e)
+         {
+            /* Parse the song instead */
+         }
+         catch (MidiFileException e)
+         {
+            /* A bad time signature in a damaged entry */
+         }
+         catch (RuntimeException e)
+         {
+            /* A truncated or damaged entry */
+         }
+         if (midifile != null)
+         {
+            long now = System.currentTimeMillis();
+            if (now - modified > TouchInterval)
+               entry.setLastModified(now);
+            return midifile;
+         }
+         entry.delete();
+      }
+
+      MidiFile midifile = new MidiFile(new MidiFileReader(content), filename);
+      try
+      {
+         Store(midifile, entry, (int) crc.getValue(), (int) adler.getValue(),
+               length);
+         Evict();
+      }
+      catch (IOException e)
+      {
+         /* The song was parsed, a read-only cache directory is no error */
+      }
+      return midifile;
+   }
+
+   /**
+    * Read the whole file into memory. If the file shrinks while it is read,
+    * only the bytes that were there are returned.
+    */
+   private static byte[] Load(File info) throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(info, "r");
+      try
+      {
+         FileChannel channel = file.getChannel();
+         ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+         while (bytes.hasRemaining())
+         {
+            if (channel.read(bytes) < 0)
+               break;
+         }
+         if (bytes.hasRemaining())
+            return Arrays.copyOf(bytes.array(), bytes.position());
+         return bytes.array();
+      }
+      finally
+      {
+         file.close();
+      }
+   }
+
+   /**
+    * Rebuild the MidiFile from a cache entry. Return null if the entry
+    * doesn't belong to the midi file with the given hash and length, or if
+    * the rest of the entry doesn't match its CRC32.
+    * 
+    * @throws MidiFileException
+    */
+   private static MidiFile Read(ByteBuffer in, String filename, int crc,
+         int adler, int length) throws MidiFileException
+   {
+      if (in.getInt() != Magic || in.getInt() != Version
+            || in.getInt() != crc || in.getInt() != adler
+            || in.getInt() != length)
+      {
+         return null;
+      }
+      int bodycrc = in.getInt();
+      CRC32 check = new CRC32();
+      check.update(in.duplicate());
+      if ((int) check.getValue() != bodycrc)
+      {
+         return null;
+      }
+      int trackmode = in.getInt();
+      int quarternote = in.getInt();
+      int totalpulses = in.getInt();
+      boolean trackPerChannel = in.getInt() != 0;
+      int numerator = in.getInt();
+      int denominator = in.getInt();
+      int tempo = in.getInt();
+      TimeSignature timesig = new TimeSignature(numerator, denominator,
+            quarternote, tempo);
+
+      int numlists = CheckCount(in, in.getInt(), 8);
+      MidiEventList[] events = new MidiEventList[numlists];
+      for (int i = 0; i < numlists; i++)
+      {
+         events[i] = new MidiEventList(in);
+      }
+
+      int numtracks = CheckCount(in, in.getInt(), 12);
+      List<MidiTrack> tracks = new ArrayList<MidiTrack>(numtracks);
+      for (int t = 0; t < numtracks; t++)
+      {
+         MidiTrack track = new MidiTrack(in.getInt());
+         track.setInstrument(in.getInt());
+         int numnotes = CheckCount(in, in.getInt(), 16);
+         int[] columns = new int[4 * numnotes];
+         in.asIntBuffer().get(columns);
+         in.position(in.position() + 4 * columns.length);
+         NoteTable notes = track.getNoteTable();
+         int prevstart = 0;
+         int prevnumber = 0;
+         for (int i = 0; i < numnotes; i++)
+         {
+            int start = columns[i];
+            int channel = columns[numnotes + i];
+            int number = columns[2 * numnotes + i];
+            int duration = columns[3 * numnotes + i];
+            if (start < prevstart
+                  || (start == prevstart && number < prevnumber)
+                  || channel < 0 || channel > 15 || number < 0
+                  || number > 127 || duration < 0)
+            {
+               throw new MidiFileException("Bad note in cache entry",
+                     in.position());
+            }
+            notes.Add(start, channel, number, duration);
+            prevstart = start;
+            prevnumber = number;
+         }
+
+         int numlyrics = in.getInt();
+         if (numlyrics >= 0)
+         {
+            MidiEventList list = events[track.getNumber()];
+            CheckCount(in, numlyrics, 4);
+            List<MidiEvent> lyrics = new ArrayList<MidiEvent>(numlyrics);
+            for (int i = 0; i < numlyrics; i++)
+            {
+               lyrics.add(list.GetEvent(in.getInt()));
+            }
+            track.setLyrics(lyrics);
+         }
+         tracks.add(track);
+      }
+      return new MidiFile(filename, events, tracks, trackmode, timesig,
+            totalpulses, trackPerChannel);
+   }
+
+   /**
+    * Check that count items of the given size fit in the rest of the buffer,
+    * and return count
+    */
+   private static int CheckCount(ByteBuffer in, int count, int size)
+   {
+      if (count < 0 || count > in.remaining() / size)
+      {
+         throw new BufferUnderflowException();
+      }
+      return count;
+   }
+
+   /**
+    * Return the index of each lyric of the track in the event list of the
+    * track, or null if the lyrics don't come from that list
+    */
+   private static int[] LyricIndexes(MidiTrack track, MidiEventList[] events)
+   {
+      List<MidiEvent> lyrics = track.getLyrics();
+      if (track.getNumber() < 0 || track.getNumber() >= events.length)
+      {
+         return null;
+      }
+      MidiEventList list = events[track.getNumber()];
+      int[] result = new int[lyrics.size()];
+      int n = 0;
+      for (int i = 0; i < list.Count() && n < result.length; i++)
+      {
+         if (list.getMetaevent(i) == MidiFile.MetaEventLyric
+               && list.getStartTime(i) == lyrics.get(n).StartTime)
+         {
+            result[n++] = i;
+         }
+      }
+      return n == result.length ? result : null;
+   }
+
+   /**
+    * Write the cache entry for the given MidiFile. The entry is written to a
+    * temporary file first, and renamed when complete, so a reader never sees
+    * half an entry.
+    * 
+    * @throws IOException
+    */
+   private void Store(MidiFile midifile, File entry, int crc, int adler,
+         int length) throws IOException
+   {
+      MidiEventList[] events = midifile.getEvents();
+      List<MidiTrack> tracks = midifile.getTracks();
+      int[][] lyrics = new int[tracks.size()][];
+
+      long size = 4 * 15;
+      for (MidiEventList list : events)
+      {
+         size += list.SerializedSize();
+      }
+      for (int t = 0; t < tracks.size(); t++)
+      {
+         MidiTrack track = tracks.get(t);
+         size += 4 * 4 + 16 * track.getNoteTable().Count();
+         if (track.getLyrics() != null)
+         {
+            lyrics[t] = LyricIndexes(track, events);
+            if (lyrics[t] == null)
+            {
+               /* Lyrics that can't be rebuilt, don't cache this song */
+               return;
+            }
+            size += 4 * lyrics[t].length;
+         }
+      }
+      if (size > maxsize)
+      {
+         return;
+      }
+
+      ByteBuffer out = ByteBuffer.allocate((int) size);
+      TimeSignature timesig = midifile.getTime();
+      out.putInt(Magic);
+      out.putInt(Version);
+      out.putInt(crc);
+      out.putInt(adler);
+      out.putInt(length);
+      out.putInt(0); /* The body CRC32, set below */
+      out.putInt(midifile.getTrackMode());
+      out.putInt(timesig.getQuarter());
+      out.putInt(midifile.getTotalPulses());
+      out.putInt(midifile.isTrackPerChannel() ? 1 : 0);
+      out.putInt(timesig.getNumerator());
+      out.putInt(timesig.getDenominator());
+      out.putInt(timesig.getTempo());
+      out.putInt(events.length);
+      for (MidiEventList list : events)
+      {
+         list.Write(out);
+      }
+
+      out.putInt(tracks.size());
+      for (int t = 0; t < tracks.size(); t++)
+      {
+         MidiTrack track = tracks.get(t);
+         NoteTable notes = track.getNoteTable();
+         out.putInt(track.getNumber());
+         out.putInt(track.getInstrument());
+         out.putInt(notes.Count());
+         for (int i = 0; i < notes.Count(); i++)
+            out.putInt(notes.getStartTime(i));
+         for (int i = 0; i < notes.Count(); i++)
+            out.putInt(notes.getChannel(i));
+         for (int i = 0; i < notes.Count(); i++)
+            out.putInt(notes.getNoteNumber(i));
+         for (int i = 0; i < notes.Count(); i++)
+            out.putInt(notes.getDuration(i));
+         if (lyrics[t] == null)
+         {
+            out.putInt(-1);
+         }
+         else
+         {
+            out.putInt(lyrics[t].length);
+            for (int i : lyrics[t])
+               out.putInt(i);
+         }
+      }
+      out.flip();
+      out.position(HeaderSize);
+      CRC32 check = new CRC32();
+      check.update(out);
+      out.putInt(HeaderSize - 4, (int) check.getValue());
+      out.position(0);
+
+      directory.mkdirs();
+      File temp = File.createTempFile("entry", ".tmp", directory);
+      try
+      {
+         RandomAccessFile file = new RandomAccessFile(temp, "rw");
+         try
+         {
+            FileChannel channel = file.getChannel();
+            while (out.hasRemaining())
+            {
+               channel.write(out);
+            }
+         }
+         finally
+         {
+            file.close();
+         }
+         if (!temp.renameTo(entry))
+         {
+            entry.delete();
+            temp.renameTo(entry);
+         }
+      }
+      finally
+      {
+         temp.delete();
+      }
+   }
+
+   /** Delete the least recently used entries, until they fit in maxsize */
+   private void Evict()
+   {
+      File[] entries = directory.listFiles();
+      if (entries == null)
+         return;
+
+      long total = 0;
+      for (File entry : entries)
+      {
+         if (entry.getName().endsWith(Suffix))
+            total += entry.length();
+      }
+      if (total <= maxsize)
+         return;
+
+      final long[] modified = new long[entries.length];
+      Integer[] order = new Integer[entries.length];
+      for (int i = 0; i < entries.length; i++)
+      {
+         modified[i] = entries[i].lastModified();
+         order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>()
+      {
+         public int compare(Integer x, Integer y)
+         {
+            return Long.compare(modified[x], modified[y]);
+         }
+      });
+      for (int i = 0; i < order.length && total > maxsize; i++)
+      {
+         File entry = entries[order[i]];
+         if (!entry.getName().endsWith(Suffix))
+            continue;
+         long len = entry.length();
+         if (entry.delete())
+            total -= len;
+      }
+   }
+
+   /** Delete all the entries of the cache */
+   public void Clear()
+   {
+      File[] entries = directory.listFiles();
+      if (entries == null)
+         return;
+      for (File entry : entries)
+      {
+         if (entry.getName().endsWith(Suffix))
+            entry.delete();
+      }
+   }
+}
@@ -1,36 +1,86 @@
 package core.midi.sheet.music;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * @class MidiFileReader The MidiFileReader is used to read low-level binary data
  *        from a file. This class can do the following:
  * 
- *        - Peek at the next byte : the file. - Read a byte - Read a 16-bit big
+ *        - Peek at the next byte in the file. - Read a byte - Read a 16-bit big
  *        endian short - Read a 32-bit big endian int - Read a fixed length
  *        ascii String (not null terminated) - Read a "variable length" integer.
  *        The format of the variable length int is described at the top of this
  *        file. - Skip ahead a given number of bytes - Return the current
  *        offset.
+ * 
+ *        The data is kept in a read-only ByteBuffer. When created from a file
+ *        name, the whole file is read into a heap buffer through a
+ *        FileChannel, without any charset conversion. Bytes are decoded
+ *        straight from the array behind that buffer.
+ * 
+ *        MidiFileReader(filename, true) maps the file instead, which saves
+ *        the copy when many songs are ingested at once. A mapped reader is
+ *        only safe while nobody changes the file: reading past the end of a
+ *        file that was truncated meanwhile fails with an InternalError, and
+ *        on Windows the file can't be replaced until the mapping is garbage
+ *        collected. So the event lists of a MidiFile never point into a
+ *        mapped reader's data; they copy the sysex/meta data they keep, and
+ *        the mapping can go away with the reader.
+ * 
+ *        A MidiFileReader can also read from an InputStream or a
+ *        ReadableByteChannel. The data is then pulled through a small buffer
+ *        that is refilled as parsing moves forward, so the whole file is
+ *        never held in memory.
  */
 
 public class MidiFileReader
 {
-   private char[] data;
-   /** The entire midi file data */
+   private ByteBuffer data;
+   /** The midi file data, or the current window of a stream */
+   private byte[] array;
+   /** The array behind data, or null if the file is mapped */
    private int parse_offset;
-
    /** The current offset while parsing */
+   private ReadableByteChannel channel;
+   /** The stream being read, or null if all data is in memory */
+   private int base;
+   /** The file offset of data[0] when reading a stream */
+   private int end;
+
+   /** The file offset just past the data in memory */
+
+   /** The default buffer size when reading from a stream */
+   public static final int StreamBufferSize = 8192;
 
    /**
-    * Create a new MidiFileReader for the given filename
+    * Create a new MidiFileReader for the given filename. The entire file is
+    * read into memory.
     * 
     * @throws MidiFileException
     * @throws IOException
     */
    public MidiFileReader(String filename) throws MidiFileException, IOException
+   {
+      this(filename, false);
+   }
+
+   /**
+    * Create a new MidiFileReader for the given filename. If mapped is true,
+    * the file is memory-mapped instead of read into memory. Only map files
+    * that won't be changed while the reader is in use.
+    * 
+    * @throws MidiFileException
+    * @throws IOException
+    */
+   public MidiFileReader(String filename, boolean mapped)
+         throws MidiFileException, IOException
    {
       File info = new File(filename);
       if (!info.exists())
@@ -42,30 +92,107 @@ public class MidiFileReader
          throw new MidiFileException(
                "File " + filename + " is empty (0 bytes)", 0);
       }
-      FileReader file = new FileReader(filename);
+      if (info.length() > Integer.MAX_VALUE)
+      {
+         throw new MidiFileException("File " + filename + " is too large", 0);
+      }
 
-      /* Read the entire file into memory */
-      // TODO LS: What if size is larger than int??
-      data = new char[(int) info.length()];
-      int offset = 0;
-      // int len = (int)info.length();
-      while (true)
+      RandomAccessFile file = new RandomAccessFile(info, "r");
+      try
       {
-         if (offset == info.length())
-            break;
-         int n = file.read(data, offset, (int) (info.length() - offset));
-         if (n <= 0)
-            break;
-         offset += n;
+         FileChannel channel = file.getChannel();
+         if (mapped)
+         {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                  channel.size());
+            end = data.limit();
+            parse_offset = 0;
+            return;
+         }
+
+         /* Read the entire file into memory */
+         ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+         while (bytes.hasRemaining())
+         {
+            if (channel.read(bytes) < 0)
+               break;
+         }
+         bytes.flip();
+         array = bytes.array();
+         data = bytes.asReadOnlyBuffer();
+         end = data.limit();
+      }
+      finally
+      {
+         file.close();
       }
       parse_offset = 0;
-      file.close();
    }
 
    /** Create a new MidiFileReader from the given data */
+   public MidiFileReader(byte[] bytes)
+   {
+      array = bytes;
+      data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+      end = bytes.length;
+      parse_offset = 0;
+   }
+
+   /**
+    * Create a new MidiFileReader that reads the given stream through a small
+    * buffer. The stream is not closed by the reader.
+    */
+   public MidiFileReader(InputStream stream)
+   {
+      this(Channels.newChannel(stream));
+   }
+
+   /**
+    * Create a new MidiFileReader that reads the given channel through a small
+    * buffer. The channel is not closed by the reader.
+    */
+   public MidiFileReader(ReadableByteChannel channel)
+   {
+      this.channel = channel;
+      data = ByteBuffer.allocate(StreamBufferSize);
+      data.limit(0);
+      array = data.array();
+      base = 0;
+      parse_offset = 0;
+   }
+
+   /**
+    * Create a new MidiFileReader over the same in-memory data as the given
+    * reader, starting at the given offset. Several readers can share the data
+    * and parse different tracks at the same time.
+    */
+   public MidiFileReader(MidiFileReader file, int offset)
+   {
+      if (file.channel != null)
+      {
+         throw new IllegalArgumentException(
+               "Cannot share the data of a stream reader");
+      }
+      data = file.data.duplicate();
+      array = file.array;
+      end = file.end;
+      parse_offset = offset;
+   }
+
+   /**
+    * Create a new MidiFileReader from the given data. Each char holds one byte
+    * of the file (0 to 255).
+    */
    public MidiFileReader(char[] bytes)
    {
-      data = bytes;
+      byte[] buf = new byte[bytes.length];
+      for (int i = 0; i < bytes.length; i++)
+      {
+         buf[i] = (byte) bytes[i];
+      }
+      array = buf;
+      data = ByteBuffer.wrap(buf).asReadOnlyBuffer();
+      end = buf.length;
       parse_offset = 0;
    }
 
@@ -76,10 +203,53 @@ public class MidiFileReader
     */
    private void checkRead(int amount) throws MidiFileException
    {
-      if (parse_offset + amount > data.length)
+      if (amount > end - parse_offset || amount < 0)
+      {
+         if (amount < 0 || channel == null || !fill(amount))
+         {
+            throw new MidiFileException("File is truncated", parse_offset);
+         }
+      }
+   }
+
+   /**
+    * Move the unread bytes to the front of the stream buffer, and read from
+    * the stream until at least the given number of bytes are buffered. The
+    * buffer only grows if a single read is larger than the buffer. Return
+    * false if the stream ends first.
+    * 
+    * @throws MidiFileException
+    */
+   private boolean fill(int amount) throws MidiFileException
+   {
+      data.position(parse_offset - base);
+      if (amount > data.capacity())
+      {
+         ByteBuffer bigger = ByteBuffer.allocate(amount);
+         bigger.put(data);
+         data = bigger;
+         array = data.array();
+      }
+      else
+      {
+         data.compact();
+      }
+      base = parse_offset;
+      try
+      {
+         while (data.position() < amount)
+         {
+            if (channel.read(data) < 0)
+               break;
+         }
+      }
+      catch (IOException e)
       {
-         throw new MidiFileException("File is truncated", parse_offset);
+         throw new MidiFileException("Error reading stream: " + e, parse_offset);
       }
+      data.flip();
+      end = base + data.limit();
+      return data.limit() >= amount;
    }
 
    /**
@@ -90,7 +260,27 @@ public class MidiFileReader
    public char Peek() throws MidiFileException
    {
       checkRead(1);
-      return data[parse_offset];
+      return get(parse_offset - base);
+   }
+
+   /** Return the byte at the given index of data */
+   private char get(int index)
+   {
+      if (array != null)
+         return (char) (array[index] & 0xFF);
+      return (char) (data.get(index) & 0xFF);
+   }
+
+   /**
+    * Read the byte the given distance ahead of the parse offset, but don't
+    * increment the parse offset. Peek(0) is the same as Peek().
+    * 
+    * @throws MidiFileException
+    */
+   public char Peek(int ahead) throws MidiFileException
+   {
+      checkRead(ahead + 1);
+      return get(parse_offset - base + ahead);
    }
 
    /**
@@ -101,7 +291,7 @@ public class MidiFileReader
    public char ReadByte() throws MidiFileException
    {
       checkRead(1);
-      char x = data[parse_offset];
+      char x = get(parse_offset - base);
       parse_offset++;
       return x;
    }
@@ -115,14 +305,37 @@ public class MidiFileReader
    {
       checkRead(amount);
       char[] result = new char[amount];
+      int start = parse_offset - base;
       for (int i = 0; i < amount; i++)
       {
-         result[i] = data[i + parse_offset];
+         result[i] = get(start + i);
       }
       parse_offset += amount;
       return result;
    }
 
+   /**
+    * Read the given number of bytes from the file into dest[offset]
+    * 
+    * @throws MidiFileException
+    */
+   public void ReadBytes(byte[] dest, int offset, int amount)
+         throws MidiFileException
+   {
+      checkRead(amount);
+      if (array != null)
+      {
+         System.arraycopy(array, parse_offset - base, dest, offset, amount);
+      }
+      else
+      {
+         ByteBuffer slice = data.duplicate();
+         slice.position(parse_offset - base);
+         slice.get(dest, offset, amount);
+      }
+      parse_offset += amount;
+   }
+
    /**
     * Read a 16-bit short from the file
     * 
@@ -131,7 +344,12 @@ public class MidiFileReader
    public int ReadShort() throws MidiFileException
    {
       checkRead(2);
-      int x = ((data[parse_offset] << 8) | data[parse_offset + 1]);
+      int i = parse_offset - base;
+      int x;
+      if (array != null)
+         x = ((array[i] & 0xFF) << 8) | (array[i + 1] & 0xFF);
+      else
+         x = data.getShort(i) & 0xFFFF;
       parse_offset += 2;
       return x;
    }
@@ -144,8 +362,13 @@ public class MidiFileReader
    public int ReadInt() throws MidiFileException
    {
       checkRead(4);
-      int x = (data[parse_offset] << 24) | (data[parse_offset + 1] << 16)
-            | (data[parse_offset + 2] << 8) | data[parse_offset + 3];
+      int i = parse_offset - base;
+      int x;
+      if (array != null)
+         x = ((array[i] & 0xFF) << 24) | ((array[i + 1] & 0xFF) << 16)
+               | ((array[i + 2] & 0xFF) << 8) | (array[i + 3] & 0xFF);
+      else
+         x = data.getInt(i);
       parse_offset += 4;
       return x;
    }
@@ -158,9 +381,14 @@ public class MidiFileReader
    public String ReadAscii(int len) throws MidiFileException
    {
       checkRead(len);
-      String s = new String(data, parse_offset, len);
+      char[] chars = new char[len];
+      int start = parse_offset - base;
+      for (int i = 0; i < len; i++)
+      {
+         chars[i] = get(start + i);
+      }
       parse_offset += len;
-      return s;
+      return new String(chars);
    }
 
    /**
@@ -200,19 +428,79 @@ public class MidiFileReader
     */
    public void Skip(int amount) throws MidiFileException
    {
+      /* Skip large stream chunks a buffer at a time */
+      if (amount > end - parse_offset && channel != null)
+      {
+         while (amount > data.capacity())
+         {
+            checkRead(data.capacity());
+            parse_offset += data.capacity();
+            amount -= data.capacity();
+         }
+      }
       checkRead(amount);
       parse_offset += amount;
    }
 
+   /**
+    * Move to the given offset of an in-memory reader, without any checks.
+    * Used by MidiEventCursor, which has already checked that the offset is
+    * within the data.
+    */
+   void Seek(int offset)
+   {
+      parse_offset = offset;
+   }
+
    /** Return the current parse offset */
    public int GetOffset()
    {
       return parse_offset;
    }
 
-   /** Return the raw midi file byte data */
+   /**
+    * Return the total length of the midi file data, or -1 if the data is read
+    * from a stream
+    */
+   public int GetLength()
+   {
+      if (channel != null)
+         return -1;
+      return data.limit();
+   }
+
+   /** Return true if the file is memory-mapped */
+   public boolean IsMapped()
+   {
+      return channel == null && array == null;
+   }
+
+   /**
+    * Return a read-only view of the midi file data, indexed by file offset, or
+    * null if the data is read from a stream. The view shares the reader's
+    * data, so slices of it stay valid while the reader moves on. For a
+    * mapped reader, they are only valid while the file is unchanged.
+    */
+   public ByteBuffer GetBuffer()
+   {
+      if (channel != null)
+         return null;
+      return data.duplicate();
+   }
+
+   /**
+    * Return a copy of the raw midi file byte data, or null if the data is read
+    * from a stream
+    */
    public char[] GetData()
    {
-      return data;
+      if (channel != null)
+         return null;
+      char[] result = new char[data.limit()];
+      for (int i = 0; i < result.length; i++)
+      {
+         result[i] = get(i);
+      }
+      return result;
    }
 }
@@ -0,0 +1,253 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * @class MidiFileWriter The MidiFileWriter is used to write low-level binary
+ *        data, the counterpart of MidiFileReader. It can write a byte, a
+ *        16-bit or 32-bit big endian number, an ascii String, and a "variable
+ *        length" integer.
+ *
+ *        The bytes go into a direct ByteBuffer that grows as needed, so
+ *        nothing passes through a charset. A chunk (MThd or MTrk) is started
+ *        with StartChunk(), which reserves 4 bytes for the chunk length, and
+ *        finished with EndChunk(), which fills in the length once the chunk
+ *        data is written. Each event is therefore encoded only once.
+ * 
+ *        When MidiFile encodes a song with MidiOptions.compactMidi set, it
+ *        counts the bytes the compact encoding left out, and GetSavedBytes()
+ *        returns that count.
+ */
+public class MidiFileWriter
+{
+   private ByteBuffer data;
+   /** The bytes written so far, from 0 to data.position() */
+   private int savedbytes;
+
+   /** The bytes a compact encoding left out, see GetSavedBytes() */
+
+   /** The initial buffer size */
+   public static final int DefaultBufferSize = 8192;
+
+   /** Create a new, empty MidiFileWriter */
+   public MidiFileWriter()
+   {
+      this(DefaultBufferSize);
+   }
+
+   /** Create a new MidiFileWriter with room for the given number of bytes */
+   public MidiFileWriter(int capacity)
+   {
+      data = ByteBuffer.allocateDirect(Math.max(16, capacity));
+   }
+
+   /** Make room for the given number of bytes */
+   private void ensure(int amount)
+   {
+      if (data.remaining() >= amount)
+         return;
+      int capacity = data.capacity();
+      while (capacity - data.position() < amount)
+      {
+         capacity *= 2;
+      }
+      ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+      data.flip();
+      bigger.put(data);
+      data = bigger;
+   }
+
+   /** Write a byte */
+   public void WriteByte(int value)
+   {
+      ensure(1);
+      data.put((byte) value);
+   }
+
+   /** Write the bytes from the given buffer's position to its limit */
+   public void WriteBytes(ByteBuffer src)
+   {
+      ensure(src.remaining());
+      data.put(src);
+   }
+
+   /** Write a 16-bit big endian number */
+   public void WriteShort(int value)
+   {
+      ensure(2);
+      data.putShort((short) value);
+   }
+
+   /** Write a 32-bit big endian number */
+   public void WriteInt(int value)
+   {
+      ensure(4);
+      data.putInt(value);
+   }
+
+   /** Write an ascii String, one byte per char, with no terminator */
+   public void WriteAscii(String text)
+   {
+      ensure(text.length());
+      for (int i = 0; i < text.length(); i++)
+      {
+         data.put((byte) text.charAt(i));
+      }
+   }
+
+   /**
+    * Write a variable-length integer (1 to 4 bytes), 7 bits per byte, most
+    * significant first, with the 8th bit set on all but the last byte.
+    */
+   public void WriteVarlen(int num)
+   {
+      ensure(4);
+      int b1 = (num >> 21) & 0x7F;
+      int b2 = (num >> 14) & 0x7F;
+      int b3 = (num >> 7) & 0x7F;
+      int b4 = num & 0x7F;
+
+      if (b1 > 0)
+      {
+         data.put((byte) (b1 | 0x80));
+      }
+      if (b1 > 0 || b2 > 0)
+      {
+         data.put((byte) (b2 | 0x80));
+      }
+      if (b1 > 0 || b2 > 0 || b3 > 0)
+      {
+         data.put((byte) (b3 | 0x80));
+      }
+      data.put((byte) b4);
+   }
+
+   /** Return the number of bytes WriteVarlen() writes for the given number */
+   public static int VarlenSize(int num)
+   {
+      if (((num >> 21) & 0x7F) > 0)
+         return 4;
+      if (((num >> 14) & 0x7F) > 0)
+         return 3;
+      if (((num >> 7) & 0x7F) > 0)
+         return 2;
+      return 1;
+   }
+
+   /**
+    * Write the chunk id (e.g. "MTrk") and reserve 4 bytes for its length.
+    * Return the offset to pass to EndChunk().
+    */
+   public int StartChunk(String id)
+   {
+      WriteAscii(id);
+      WriteInt(0);
+      return data.position();
+   }
+
+   /**
+    * Fill in the length of the chunk started at the given offset: the number
+    * of bytes written since StartChunk().
+    */
+   public void EndChunk(int start)
+   {
+      data.putInt(start - 4, data.position() - start);
+   }
+
+   /** Return the current offset, the number of bytes written */
+   public int GetOffset()
+   {
+      return data.position();
+   }
+
+   /** Add to the number of bytes a compact encoding left out */
+   void AddSavedBytes(int amount)
+   {
+      savedbytes += amount;
+   }
+
+   /**
+    * Return the number of bytes a compact encoding left out: how much
+    * smaller the data is than the same song written without it. This is 0
+    * unless MidiOptions.compactMidi was set.
+    */
+   public int GetSavedBytes()
+   {
+      return savedbytes;
+   }
+
+   /**
+    * Return a read-only view of the bytes written, from 0 to GetOffset(). The
+    * view shares the writer's data, so it is only valid until the next write.
+    */
+   public ByteBuffer GetBuffer()
+   {
+      ByteBuffer result = data.duplicate();
+      result.flip();
+      return result.asReadOnlyBuffer();
+   }
+
+   /** Write all the bytes written so far to the given channel */
+   public void WriteTo(WritableByteChannel channel) throws IOException
+   {
+      ByteBuffer out = GetBuffer();
+      while (out.hasRemaining())
+      {
+         channel.write(out);
+      }
+   }
+
+   /**
+    * Write all the bytes written so far to the given filename. They are
+    * written to a temporary file in the same directory, which is then renamed
+    * to filename. So filename is never left half written, and it can be the
+    * file the song was read from.
+    */
+   public void WriteTo(String filename) throws IOException
+   {
+      File dest = new File(filename).getAbsoluteFile();
+      File temp = File.createTempFile("midi", ".tmp", dest.getParentFile());
+      try
+      {
+         FileOutputStream stream = new FileOutputStream(temp);
+         try
+         {
+            WriteTo(stream.getChannel());
+         }
+         finally
+         {
+            stream.close();
+         }
+         if (!temp.renameTo(dest))
+         {
+            dest.delete();
+            if (!temp.renameTo(dest))
+            {
+               throw new IOException("Unable to rename " + temp + " to "
+                     + dest);
+            }
+         }
+      }
+      finally
+      {
+         temp.delete();
+      }
+   }
+}
@@ -43,7 +43,7 @@ public class MidiNote implements Comparable<MidiNote>
 
    public int getEndTime()
    {
-      return starttime + duration;
+      return getStartTime() + getDuration();
    }
 
    public int getChannel()
@@ -86,6 +86,11 @@ public class MidiNote implements Comparable<MidiNote>
 
    /** The duration, : pulses */
 
+   /** Create a MidiNote whose fields are kept elsewhere (see NoteTable) */
+   MidiNote()
+   {
+   }
+
    /*
     * Create a new MidiNote. This is called when a NoteOn event is encountered
     * : the MidiFile.
@@ -104,7 +109,7 @@ public class MidiNote implements Comparable<MidiNote>
     */
    public void NoteOff(int endtime)
    {
-      duration = endtime - starttime;
+      setDuration(endtime - getStartTime());
    }
 
    /**
@@ -113,15 +118,16 @@ public class MidiNote implements Comparable<MidiNote>
     */
    public int compareTo(MidiNote o)
    {
-      if (starttime == o.starttime)
-         return notenumber - o.notenumber;
+      if (getStartTime() == o.getStartTime())
+         return getNoteNumber() - o.getNoteNumber();
       else
-         return starttime - o.starttime;
+         return getStartTime() - o.getStartTime();
    }
 
    public MidiNote Clone()
    {
-      return new MidiNote(starttime, channel, notenumber, duration);
+      return new MidiNote(getStartTime(), getChannel(), getNoteNumber(),
+            getDuration());
    }
 
    public String toString()
@@ -130,8 +136,8 @@ public class MidiNote implements Comparable<MidiNote>
             "G", "G#" };
       return String.format(
             "MidiNote channel={0} number={1} {2} start={3} duration={4}",
-            channel, notenumber, scale[(notenumber + 3) % 12], starttime,
-            duration);
+            getChannel(), getNoteNumber(), scale[(getNoteNumber() + 3) % 12],
+            getStartTime(), getDuration());
 
    }
 
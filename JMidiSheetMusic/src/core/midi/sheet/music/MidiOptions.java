@@ -60,6 +60,7 @@ import java.awt.Color;
           public boolean playMeasuresInLoop;     /** Play the selected measures : a loop */
           public int playMeasuresInLoopStart; /** Start measure to play : loop */
           public int playMeasuresInLoopEnd;   /** End measure to play : loop */
+          public boolean compactMidi;    /** Write midi files with running status, dropping repeated controller values */
 
           public MidiOptions(MidiFile midifile) {
               int numtracks = midifile.getTracks().size();
@@ -99,6 +100,7 @@ import java.awt.Color;
               playMeasuresInLoop = false; 
               playMeasuresInLoopStart = 0;
               playMeasuresInLoopEnd = midifile.EndTime() / midifile.getTime().getMeasure();
+              compactMidi = false;
           }
       
    }
@@ -13,17 +13,836 @@ package core.midi.sheet.music;
  *  GNU General Public License for more details.
  */
 
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Image;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.net.URL;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
+/**
+ * @class MidiPlayer The MidiPlayer is the panel at the top used to play the
+ *        sound of the midi file. It consists of:
+ * 
+ *        - The Rewind button - The Play/Pause button - The Stop button - The
+ *        Fast Forward button - The Playback speed bar - The Volume bar
+ * 
+ *        The sound of the midi file depends on - The MidiOptions (taken from
+ *        the menus) Which tracks are selected How much to transpose the keys
+ *        by What instruments to use per track - The tempo (from the Speed bar)
+ *        - The volume
+ * 
+ *        The sound is played in this process, with javax.sound.midi. On each
+ *        play, MidiFile.ApplyOptionsToEvents() gives the events with the
+ *        options applied. A MidiScheduler plays them, from a thread of its
+ *        own, into the default Synthesizer (Gervill, the software synthesizer
+ *        of the JDK). No midi file is written, and no player program is
+ *        started, so the music starts within milliseconds. Moving the speed
+ *        bar changes the speed at once, while playing.
+ * 
+ *        The current 'pulse time' comes from the MidiScheduler, which follows
+ *        the tempo changes of the song. If no synthesizer can be opened (no
+ *        sound device), the scheduler still keeps the time, so the notes are
+ *        shaded.
+ * 
+ *        With SetUseSequencer(true), the events are instead built into a
+ *        Sequence in memory, and played by the built-in Sequencer. The pulse
+ *        time is then the Sequencer's tick position. If no Sequencer is
+ *        available, the MidiScheduler is used.
+ * 
+ *        For shading the notes during playback, the method Piano.ShadeNotes()
+ *        is used. It takes the current 'pulse time', and determines which
+ *        notes to shade. SheetMusic is not ported yet, so the sheet music is
+ *        not shaded.
+ */
 public class MidiPlayer extends JPanel
 {
+   private ImageIcon playImage;
+   /** The play image */
+   private ImageIcon pauseImage;
+
+   /** The pause image */
+
+   private JButton rewindButton;
+   /** The rewind button */
+   private JButton playButton;
+   /** The play/pause button */
+   private JButton stopButton;
+   /** The stop button */
+   private JButton fastFwdButton;
+   /** The fast forward button */
+   private JSlider speedBar;
+   /** The slider for controlling the playback speed */
+   private JSlider volumeBar;
+
+   /** The slider for controlling the volume */
+
+   int playstate;
+   /** The playing state of the Midi Player */
+   static final int stopped = 1;
+   /** Currently stopped */
+   static final int playing = 2;
+   /** Currently playing music */
+   static final int paused = 3;
+
+   /** Currently paused */
+
+   MidiFile midifile;
+   /** The midi file to play */
+   MidiOptions options;
+   /** The sound options for playing the midi file */
+   SheetMusic sheet;
+   /** The sheet music to shade while playing */
+   Piano piano;
+   /** The piano to shade while playing */
+   Timer timer;
+   /** Timer used to update the sheet music while playing */
+   int playspeed;
+   /** The value of the speed bar when the music started playing */
+   double startPulseTime;
+   /** Time (in pulses) when music started playing */
+   double currentPulseTime;
+   /** Time (in pulses) music is currently at */
+   double prevPulseTime;
+   /** Time (in pulses) music was last at */
+   String errormsg;
+
+   /** Error message from the midi player, or null */
+
+   boolean useSequencer;
+   /** True to play through the Sequencer instead of the MidiScheduler */
+   MidiScheduler scheduler;
+   /** The scheduler playing the music, or null if the sequencer does */
+   Sequencer sequencer;
+   /** The sequencer playing the music, or null if the scheduler does */
+   Synthesizer synth;
+   /** The synthesizer making the sound, or null if none can be opened */
+   Receiver receiver;
+
+   /** The receiver of the synthesizer, or null */
 
    public JSheetMusicWindow Parent;
 
-   public void SetPiano(Piano piano)
+   /** Load the image with the given name, scaled to the button height */
+   private static ImageIcon LoadImage(String name, int height)
+   {
+      URL url = MidiPlayer.class.getResource("/" + name);
+      if (url == null)
+         return null;
+      Image image = new ImageIcon(url).getImage();
+      return new ImageIcon(image.getScaledInstance(height, height,
+            Image.SCALE_SMOOTH));
+   }
+
+   /** Create a button with the given image (or text) and tooltip */
+   private JButton CreateButton(String image, String tip, int height)
+   {
+      JButton button = new JButton();
+      ImageIcon icon = LoadImage(image, height);
+      if (icon != null)
+         button.setIcon(icon);
+      else
+         button.setText(tip);
+      button.setToolTipText(tip);
+      button.setPreferredSize(new Dimension(height * 3 / 2, height * 3 / 2));
+      add(button);
+      return button;
+   }
+
+   /**
+    * Create a new MidiPlayer, displaying the play/stop buttons, the speed
+    * bar, and volume bar. The midifile and sheetmusic are initially null.
+    */
+   public MidiPlayer()
+   {
+      setLayout(new FlowLayout(FlowLayout.LEFT));
+      int buttonheight = getFont() != null ? getFont().getSize() * 2 : 24;
+
+      this.midifile = null;
+      this.options = null;
+      this.sheet = null;
+      playstate = stopped;
+      playspeed = 100;
+      startPulseTime = 0;
+      currentPulseTime = 0;
+      prevPulseTime = -10;
+      errormsg = null;
+
+      rewindButton = CreateButton("rewind.png", "Rewind", buttonheight);
+      rewindButton.addActionListener(new ActionListener()
+      {
+         public void actionPerformed(ActionEvent e)
+         {
+            Rewind();
+         }
+      });
+
+      playButton = CreateButton("play.png", "Play", buttonheight);
+      playImage = LoadImage("play.png", buttonheight);
+      pauseImage = LoadImage("pause.png", buttonheight);
+      playButton.addActionListener(new ActionListener()
+      {
+         public void actionPerformed(ActionEvent e)
+         {
+            PlayPause();
+         }
+      });
+
+      stopButton = CreateButton("stop.png", "Stop", buttonheight);
+      stopButton.addActionListener(new ActionListener()
+      {
+         public void actionPerformed(ActionEvent e)
+         {
+            Stop();
+         }
+      });
+
+      fastFwdButton = CreateButton("fastforward.png", "Fast Forward",
+            buttonheight);
+      fastFwdButton.addActionListener(new ActionListener()
+      {
+         public void actionPerformed(ActionEvent e)
+         {
+            FastForward();
+         }
+      });
+
+      /* Create the Speed bar */
+      add(new JLabel("Speed: "));
+      speedBar = new JSlider(1, 100, 100);
+      speedBar.setMajorTickSpacing(10);
+      speedBar.setPaintTicks(true);
+      speedBar.setToolTipText("Adjust the speed");
+      speedBar.addChangeListener(new ChangeListener()
+      {
+         public void stateChanged(ChangeEvent e)
+         {
+            ChangeSpeed();
+         }
+      });
+      add(speedBar);
+
+      /* Create the Volume bar */
+      ImageIcon volumeImage = LoadImage("volume.png", buttonheight);
+      add(volumeImage != null ? new JLabel(volumeImage) : new JLabel("Volume: "));
+      volumeBar = new JSlider(1, 100, 100);
+      volumeBar.setMajorTickSpacing(10);
+      volumeBar.setPaintTicks(true);
+      volumeBar.setToolTipText("Adjust the volume");
+      volumeBar.addChangeListener(new ChangeListener()
+      {
+         public void stateChanged(ChangeEvent e)
+         {
+            ChangeVolume();
+         }
+      });
+      add(volumeBar);
+
+      /*
+       * Initialize the timer used for playback, but don't start the timer
+       * yet.
+       */
+      timer = new Timer(100, new ActionListener()
+      {
+         public void actionPerformed(ActionEvent e)
+         {
+            TimerCallback();
+         }
+      });
+   }
+
+   public void SetPiano(Piano p)
+   {
+      piano = p;
+   }
+
+   /**
+    * The MidiFile and/or SheetMusic has changed. Stop any playback sound, and
+    * store the current midifile and sheet music.
+    */
+   public void SetMidiFile(MidiFile file, MidiOptions opt, SheetMusic s)
+   {
+      /*
+       * If we're paused, and using the same midi file, redraw the highlighted
+       * notes.
+       */
+      if (file == midifile && midifile != null && playstate == paused)
+      {
+         options = opt;
+         sheet = s;
+         ShadePiano((int) currentPulseTime, (int) prevPulseTime);
+      }
+      else
+      {
+         this.Stop();
+         midifile = file;
+         options = opt;
+         sheet = s;
+      }
+
+      /* Open the sound devices now, so pressing Play starts at once */
+      if (midifile != null)
+      {
+         OpenSound();
+      }
+   }
+
+   /**
+    * Choose to play through the built-in Sequencer (true), or through the
+    * MidiScheduler (false, the default). The sound is stopped, and the new
+    * choice is used from the next play on.
+    */
+   public void SetUseSequencer(boolean value)
+   {
+      if (value == useSequencer)
+         return;
+      Close();
+      useSequencer = value;
+      if (midifile != null)
+      {
+         OpenSound();
+      }
+   }
+
+   /** Stop playing, and close the scheduler or sequencer, and synthesizer */
+   public void Close()
+   {
+      Stop();
+      if (scheduler != null)
+      {
+         scheduler.Close();
+         scheduler = null;
+      }
+      if (sequencer != null)
+      {
+         sequencer.close();
+         sequencer = null;
+      }
+      if (synth != null)
+      {
+         synth.close();
+         synth = null;
+         receiver = null;
+      }
+   }
+
+   /** Return the error message of the midi player, or null if none */
+   public String getErrorMessage()
+   {
+      return errormsg;
+   }
+
+   /**
+    * Return the number of tracks selected in the MidiOptions. If the number
+    * of tracks is 0, there is no sound to play.
+    */
+   private int numberTracks()
+   {
+      int count = 0;
+      for (int i = 0; i < options.tracks.length; i++)
+      {
+         if (options.tracks[i] && !options.mute[i])
+         {
+            count += 1;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Open the synthesizer, and start the scheduler (or open the sequencer)
+    * that plays into it, if not already done. If the synthesizer can't be
+    * opened, the music plays silently, and errormsg says why.
+    */
+   private void OpenSound()
+   {
+      if (scheduler != null || sequencer != null)
+         return;
+      try
+      {
+         synth = MidiSystem.getSynthesizer();
+         synth.open();
+         receiver = synth.getReceiver();
+      }
+      catch (MidiUnavailableException e)
+      {
+         synth = null;
+         receiver = null;
+         errormsg = "No midi synthesizer: " + e.getMessage();
+      }
+      if (useSequencer)
+      {
+         OpenSequencer();
+      }
+      if (sequencer == null)
+      {
+         scheduler = new MidiScheduler(receiver);
+      }
+   }
+
+   /**
+    * Open the sequencer. It is not connected to the default device; its
+    * events go to the synthesizer, if there is one. If no sequencer is
+    * available, sequencer stays null, and errormsg says why.
+    */
+   private void OpenSequencer()
+   {
+      try
+      {
+         sequencer = MidiSystem.getSequencer(false);
+         sequencer.open();
+         if (receiver != null)
+         {
+            sequencer.getTransmitter().setReceiver(receiver);
+         }
+      }
+      catch (MidiUnavailableException e)
+      {
+         if (sequencer != null)
+         {
+            sequencer.close();
+         }
+         sequencer = null;
+         errormsg = "No midi sequencer: " + e.getMessage();
+      }
+   }
+
+   /**
+    * Create a Sequence from the events of the midi file, with the options
+    * applied. The ticks of the sequence are pulses, starting from
+    * options.pauseTime.
+    */
+   static Sequence CreateSequence(MidiFile midifile, MidiOptions options)
+         throws InvalidMidiDataException
+   {
+      MidiEventPipeline pipeline = midifile.ApplyOptionsToEvents(options);
+      Sequence sequence = new Sequence(Sequence.PPQ, midifile.getTime()
+            .getQuarter());
+      for (int tracknum : pipeline.GetTracks())
+      {
+         Track track = sequence.createTrack();
+         PipelineEvent ev = pipeline.Open(tracknum);
+         while (pipeline.Next(ev))
+         {
+            MidiMessage message = CreateMessage(ev);
+            if (message != null)
+            {
+               track.add(new javax.sound.midi.MidiEvent(message, ev.StartTime));
+            }
+         }
+      }
+      return sequence;
+   }
+
+   /**
+    * Return the javax.sound.midi message for the given event, or null if it
+    * should be left out: the end of track (the Track adds its own), and
+    * events with invalid data. Unlike the MidiScheduler, the sequencer needs
+    * the meta events, for the tempo changes.
+    */
+   private static MidiMessage CreateMessage(PipelineEvent ev)
    {
-      // TODO Auto-generated method stub
-      
+      if (ev.EventFlag != MidiFile.MetaEvent)
+      {
+         return MidiScheduler.CreateMessage(ev);
+      }
+      if (ev.Data1 == MidiFile.MetaEventEndOfTrack)
+         return null;
+      try
+      {
+         byte[] data = ev.getBytes();
+         return new MetaMessage(ev.Data1, data, data.length);
+      }
+      catch (InvalidMidiDataException e)
+      {
+         return null;
+      }
    }
 
+   /** Apply the options to the events, and start playing them */
+   private void PlaySound()
+   {
+      double inverse_tempo = 1.0 / midifile.getTime().getTempo();
+      double inverse_tempo_scaled = inverse_tempo * speedBar.getValue() / 100.0;
+      options.tempo = (int) (1.0 / inverse_tempo_scaled);
+      playspeed = speedBar.getValue();
+
+      if (sequencer != null)
+      {
+         try
+         {
+            sequencer.setSequence(CreateSequence(midifile, options));
+            sequencer.setTickPosition(0);
+            sequencer.setTempoFactor(1.0f);
+            sequencer.start();
+         }
+         catch (InvalidMidiDataException e)
+         {
+            errormsg = "Cannot play the midi file: " + e.getMessage();
+         }
+         return;
+      }
+      scheduler.SetRate(1.0);
+      scheduler.Seek(midifile.ApplyOptionsToEvents(options),
+            midifile.getTime().getQuarter(), options.tempo);
+      scheduler.Play();
+   }
+
+   /** Stop playing the MIDI music, silencing the notes still sounding */
+   private void StopSound()
+   {
+      if (scheduler != null)
+      {
+         scheduler.Pause();
+      }
+      if (sequencer != null && sequencer.isOpen())
+      {
+         sequencer.stop();
+         if (receiver != null)
+         {
+            /* All Sound Off on each channel */
+            for (int channel = 0; channel < 16; channel++)
+            {
+               try
+               {
+                  receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE,
+                        channel, 120, 0), -1);
+               }
+               catch (InvalidMidiDataException e)
+               {
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Set the volume of the synthesizer, from 1 to 100, with a Master Volume
+    * universal system exclusive message
+    */
+   private void SetVolume(int value)
+   {
+      if (receiver == null)
+         return;
+      int volume = value * 16383 / 100;
+      byte[] data = { (byte) 0xF0, 0x7F, 0x7F, 0x04, 0x01,
+            (byte) (volume & 0x7F), (byte) (volume >> 7), (byte) 0xF7 };
+      try
+      {
+         SysexMessage message = new SysexMessage(data, data.length);
+         if (scheduler != null)
+            scheduler.Send(message);
+         else
+            receiver.send(message, -1);
+      }
+      catch (InvalidMidiDataException e)
+      {
+      }
+   }
+
+   /**
+    * Return the pulse time the music is at, from the scheduler, or the
+    * sequencer's tick position
+    */
+   private double CurrentPulseTime()
+   {
+      if (sequencer != null)
+      {
+         return startPulseTime + sequencer.getTickPosition();
+      }
+      return startPulseTime + scheduler.getPulseTime();
+   }
+
+   /** Shade the notes on the piano, if there is one */
+   private void ShadePiano(int currentPulseTime, int prevPulseTime)
+   {
+      if (piano != null)
+      {
+         piano.ShadeNotes(currentPulseTime, prevPulseTime);
+      }
+   }
+
+   /**
+    * The callback for the play/pause button (a single button). If we're
+    * stopped or pause, then play the midi file. If we're currently playing,
+    * then pause.
+    */
+   void PlayPause()
+   {
+      if (midifile == null || numberTracks() == 0)
+      {
+         return;
+      }
+      else if (playstate == playing)
+      {
+         Pause();
+         return;
+      }
+      else if (playstate == stopped || playstate == paused)
+      {
+         /*
+          * The startPulseTime is the pulse time of the midi file when we first
+          * start playing the music. It's used during shading.
+          */
+         int measure = midifile.getTime().getMeasure();
+         if (options.playMeasuresInLoop)
+         {
+            /*
+             * If we're playing measures in a loop, make sure the
+             * currentPulseTime is somewhere inside the loop measures.
+             */
+            int current = (int) (currentPulseTime / measure);
+            if ((current < options.playMeasuresInLoopStart)
+                  || (current > options.playMeasuresInLoopEnd))
+            {
+               currentPulseTime = options.playMeasuresInLoopStart * measure;
+            }
+            startPulseTime = currentPulseTime;
+            options.pauseTime = (int) (currentPulseTime - options.shifttime);
+         }
+         else if (playstate == paused)
+         {
+            startPulseTime = currentPulseTime;
+            options.pauseTime = (int) (currentPulseTime - options.shifttime);
+         }
+         else
+         {
+            options.pauseTime = 0;
+            startPulseTime = options.shifttime;
+            currentPulseTime = options.shifttime;
+            prevPulseTime = options.shifttime - midifile.getTime().getQuarter();
+         }
+
+         playstate = playing;
+         SetVolume(volumeBar.getValue());
+         PlaySound();
+         timer.start();
+         if (pauseImage != null)
+            playButton.setIcon(pauseImage);
+         playButton.setToolTipText("Pause");
+         ShadePiano((int) currentPulseTime, (int) prevPulseTime);
+         return;
+      }
+   }
+
+   /** Pause the music, and shade the notes where it stopped */
+   private void Pause()
+   {
+      timer.stop();
+      prevPulseTime = currentPulseTime;
+      currentPulseTime = CurrentPulseTime();
+      StopSound();
+      ShadePiano((int) currentPulseTime, (int) prevPulseTime);
+      playstate = paused;
+      if (playImage != null)
+         playButton.setIcon(playImage);
+      playButton.setToolTipText("Play");
+   }
+
+   /**
+    * The callback for the Stop button. Stop the sound, remove any shading,
+    * and clear the state.
+    */
+   public void Stop()
+   {
+      if (midifile == null || playstate == stopped)
+      {
+         return;
+      }
+      timer.stop();
+      DoStop();
+   }
+
+   /**
+    * Perform the actual stop, by stopping the sound, removing any shading,
+    * and clearing the state.
+    */
+   void DoStop()
+   {
+      playstate = stopped;
+      StopSound();
+
+      /* Remove all shading by redrawing the music */
+      if (piano != null)
+      {
+         piano.repaint();
+      }
+
+      startPulseTime = 0;
+      currentPulseTime = 0;
+      prevPulseTime = 0;
+      if (playImage != null)
+         playButton.setIcon(playImage);
+      playButton.setToolTipText("Play");
+      return;
+   }
+
+   /**
+    * Rewind the midi music back one measure. The music must be in the paused
+    * state. When we resume in playPause, we start at the currentPulseTime. So
+    * to rewind, just decrease the currentPulseTime, and re-shade the sheet
+    * music.
+    */
+   void Rewind()
+   {
+      if (midifile == null || playstate != paused)
+      {
+         return;
+      }
+      /* Remove any highlighted notes */
+      ShadePiano(-10, (int) currentPulseTime);
+
+      prevPulseTime = currentPulseTime;
+      currentPulseTime -= midifile.getTime().getMeasure();
+      if (currentPulseTime < options.shifttime)
+      {
+         currentPulseTime = options.shifttime;
+      }
+      ShadePiano((int) currentPulseTime, (int) prevPulseTime);
+   }
+
+   /**
+    * Fast forward the midi music by one measure. The music must be in the
+    * paused/stopped state. When we resume in playPause, we start at the
+    * currentPulseTime. So to fast forward, just increase the
+    * currentPulseTime, and re-shade the sheet music.
+    */
+   void FastForward()
+   {
+      if (midifile == null)
+      {
+         return;
+      }
+      if (playstate != paused && playstate != stopped)
+      {
+         return;
+      }
+      playstate = paused;
+
+      /* Remove any highlighted notes */
+      ShadePiano(-10, (int) currentPulseTime);
+
+      prevPulseTime = currentPulseTime;
+      currentPulseTime += midifile.getTime().getMeasure();
+      if (currentPulseTime > midifile.getTotalPulses())
+      {
+         currentPulseTime -= midifile.getTime().getMeasure();
+      }
+      ShadePiano((int) currentPulseTime, (int) prevPulseTime);
+   }
+
+   /**
+    * The callback for the timer. If the midi is still playing, update the
+    * currentPulseTime and shade the sheet music.
+    */
+   void TimerCallback()
+   {
+      if (midifile == null)
+      {
+         timer.stop();
+         playstate = stopped;
+         return;
+      }
+      else if (playstate != playing)
+      {
+         /* This case should never happen */
+         timer.stop();
+         return;
+      }
+
+      prevPulseTime = currentPulseTime;
+      currentPulseTime = CurrentPulseTime();
+
+      /* If we're playing in a loop, stop and restart */
+      if (options.playMeasuresInLoop)
+      {
+         double pulsesPerMsec = midifile.getTime().getQuarter()
+               * (1000.0 / options.tempo);
+         double nearEndTime = currentPulseTime + pulsesPerMsec * 10;
+         int measure = (int) (nearEndTime / midifile.getTime().getMeasure());
+         if (measure > options.playMeasuresInLoopEnd)
+         {
+            RestartPlayMeasuresInLoop();
+            return;
+         }
+      }
+
+      /* Stop if we've reached the end of the song */
+      if (currentPulseTime > midifile.getTotalPulses())
+      {
+         timer.stop();
+         DoStop();
+         return;
+      }
+
+      ShadePiano((int) currentPulseTime, (int) prevPulseTime);
+   }
+
+   /**
+    * The "Play Measures in a Loop" feature is enabled, and we've reached the
+    * last measure. Stop the sound, unshade the music, and then start playing
+    * again.
+    */
+   private void RestartPlayMeasuresInLoop()
+   {
+      timer.stop();
+      playstate = stopped;
+      StopSound();
+
+      ShadePiano(-10, (int) prevPulseTime);
+      currentPulseTime = -1;
+      prevPulseTime = 0;
+      PlayPause();
+   }
+
+   /**
+    * Callback for volume bar. Adjust the volume if the midi sound is
+    * currently playing.
+    */
+   private void ChangeVolume()
+   {
+      if (playstate == playing)
+      {
+         SetVolume(volumeBar.getValue());
+      }
+   }
+
+   /**
+    * The callback when the speed bar changes. While playing, change the
+    * speed of the music at once, relative to the speed it started with.
+    */
+   private void ChangeSpeed()
+   {
+      if (playstate == playing)
+      {
+         double inverse_tempo = 1.0 / midifile.getTime().getTempo();
+         double inverse_tempo_scaled = inverse_tempo * speedBar.getValue() / 100.0;
+         options.tempo = (int) (1.0 / inverse_tempo_scaled);
+         if (sequencer != null)
+            sequencer.setTempoFactor((float) speedBar.getValue() / playspeed);
+         else
+            scheduler.SetRate((double) speedBar.getValue() / playspeed);
+      }
+   }
 }
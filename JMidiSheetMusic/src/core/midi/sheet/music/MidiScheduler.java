@@ -0,0 +1,574 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * @class MidiScheduler The MidiScheduler plays the events of a
+ *        MidiEventPipeline into a Receiver, from a thread of its own. It is
+ *        used in place of the Sequencer, so the timing of the music is under
+ *        our control.
+ * 
+ *        Each track of the pipeline is read with its own PipelineEvent (the
+ *        track's cursor). The cursors are kept in a heap, ordered by start
+ *        time, so the next event of the song is always at the top: a k-way
+ *        merge of the tracks, without copying the events.
+ * 
+ *        The time of each event is found from the pulses since the last
+ *        tempo change, as a System.nanoTime() deadline. The thread parks
+ *        until shortly before the deadline, then spins until it is reached,
+ *        since a parked thread may wake up late.
+ * 
+ *        The player controls the scheduler with Seek(), Play(), Pause(),
+ *        SetRate() and Send(). These don't take a lock: they put a command
+ *        on a queue, which the thread reads before each event. They must all
+ *        be called from the same thread (the Swing event thread). All the
+ *        messages, including those given to Send(), go to the receiver from
+ *        the scheduler thread, so they arrive in order.
+ */
+public class MidiScheduler implements Runnable
+{
+   /** Wait by spinning, rather than parking, when this close to a deadline */
+   static final long SpinNanos = 1000000;
+
+   /** The number of commands that can be waiting in the queue */
+   static final int QueueSize = 64;
+
+   /* The kinds of command */
+   static final int CommandSeek = 1;
+   static final int CommandPlay = 2;
+   static final int CommandPause = 3;
+   static final int CommandRate = 4;
+   static final int CommandSend = 5;
+   static final int CommandQuit = 6;
+
+   /** A command from the player to the scheduler thread */
+   static final class Command
+   {
+      int kind;
+      /** CommandSeek, CommandPlay, etc */
+      MidiEventPipeline pipeline;
+      /** The pipeline to play, for CommandSeek */
+      int quarter;
+      /** The pulses per quarter note, for CommandSeek */
+      int tempo;
+      /** The tempo at the start, for CommandSeek */
+      double rate;
+      /** The playback rate, for CommandRate */
+      MidiMessage message;
+
+      /** The message to send, for CommandSend */
+
+      Command(int kind)
+      {
+         this.kind = kind;
+      }
+   }
+
+   /**
+    * A queue of commands, for one thread putting commands on it and one
+    * thread taking them off. Neither side takes a lock: each writes only its
+    * own position, with an ordered write after the slot is filled or
+    * cleared, which makes the slot visible to the other side.
+    */
+   static final class CommandQueue
+   {
+      private final Command[] slots;
+      /** The ring of commands. The size is a power of 2. */
+      private final AtomicLong head = new AtomicLong();
+      /** The number of commands taken, written only by the reading thread */
+      private final AtomicLong tail = new AtomicLong();
+
+      /** The number of commands added, written only by the adding thread */
+
+      CommandQueue(int size)
+      {
+         slots = new Command[Integer.highestOneBit(size - 1) << 1];
+      }
+
+      /** Add a command. Return false if the queue is full. */
+      boolean Offer(Command command)
+      {
+         long t = tail.get();
+         if (t - head.get() == slots.length)
+            return false;
+         slots[(int) t & (slots.length - 1)] = command;
+         tail.lazySet(t + 1);
+         return true;
+      }
+
+      /** Take the oldest command, or return null if the queue is empty */
+      Command Poll()
+      {
+         long h = head.get();
+         if (h == tail.get())
+            return null;
+         int slot = (int) h & (slots.length - 1);
+         Command command = slots[slot];
+         slots[slot] = null;
+         head.lazySet(h + 1);
+         return command;
+      }
+
+      /** Return true if there are no commands waiting */
+      boolean IsEmpty()
+      {
+         return head.get() == tail.get();
+      }
+   }
+
+   /**
+    * The position of the music, as read by the player. A new Clock is
+    * published whenever the tempo or the state changes.
+    */
+   static final class Clock
+   {
+      final long anchorNanos;
+      /** The System.nanoTime() at which the music was at anchorPulse */
+      final double anchorPulse;
+      /** The pulse time of the music at anchorNanos */
+      final double nanosPerPulse;
+      /** The length of a pulse, with the rate applied */
+      final boolean running;
+
+      /** True if the music is playing, so the pulse time moves */
+
+      Clock(long anchorNanos, double anchorPulse, double nanosPerPulse,
+            boolean running)
+      {
+         this.anchorNanos = anchorNanos;
+         this.anchorPulse = anchorPulse;
+         this.nanosPerPulse = nanosPerPulse;
+         this.running = running;
+      }
+
+      /** Return the pulse time the music is at, at the given nanoTime */
+      double PulseAt(long nanos)
+      {
+         if (!running)
+            return anchorPulse;
+         return anchorPulse + (nanos - anchorNanos) / nanosPerPulse;
+      }
+   }
+
+   private final Receiver receiver;
+   /** The receiver to play into, or null to only keep the time */
+   private final CommandQueue commands;
+   /** The commands from the player */
+   private final Thread thread;
+   /** The scheduler thread */
+   private volatile Clock clock;
+
+   /** The position of the music, for the player */
+
+   /* The state below is only used by the scheduler thread */
+
+   private MidiEventPipeline pipeline;
+   /** The pipeline being played, or null */
+   private PipelineEvent[] heap;
+   /** The cursor of each track not yet finished, as a heap */
+   private int heapsize;
+   /** The number of cursors in the heap */
+   private boolean playing;
+   /** True if the events are being sent */
+   private int quarter;
+   /** The pulses per quarter note */
+   private int tempo;
+   /** The current tempo, in microseconds per quarter note */
+   private double rate;
+   /** The playback rate, where 1.0 is the speed of the pipeline */
+   private long anchorNanos;
+   /** The deadline of the pulse anchorPulse */
+   private double anchorPulse;
+   /** The pulse of the last tempo change, or where the timing restarted */
+   private double nanosPerPulse;
+
+   /** The length of a pulse at the current tempo and rate */
+
+   /**
+    * Create a scheduler that plays into the given receiver, and start its
+    * thread. The receiver may be null, in which case the scheduler only
+    * keeps the time.
+    */
+   public MidiScheduler(Receiver receiver)
+   {
+      this.receiver = receiver;
+      commands = new CommandQueue(QueueSize);
+      heap = new PipelineEvent[0];
+      quarter = 480;
+      tempo = 500000;
+      rate = 1.0;
+      nanosPerPulse = NanosPerPulse();
+      clock = new Clock(System.nanoTime(), 0, nanosPerPulse, false);
+
+      thread = new Thread(this, "MidiScheduler");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MAX_PRIORITY);
+      thread.start();
+   }
+
+   /** Put a command on the queue, waiting for room if it is full */
+   private void Post(Command command)
+   {
+      while (!commands.Offer(command))
+      {
+         LockSupport.unpark(thread);
+         Thread.yield();
+      }
+      LockSupport.unpark(thread);
+   }
+
+   /**
+    * Stop any sound, and go to the start of the given pipeline, with the
+    * given pulses per quarter note and starting tempo. The music plays from
+    * there once Play() is called, or at once if it is already playing.
+    */
+   public void Seek(MidiEventPipeline pipeline, int quarter, int tempo)
+   {
+      Command command = new Command(CommandSeek);
+      command.pipeline = pipeline;
+      command.quarter = quarter;
+      command.tempo = tempo;
+      Post(command);
+   }
+
+   /** Start or resume playing, from where the music is */
+   public void Play()
+   {
+      Post(new Command(CommandPlay));
+   }
+
+   /** Stop playing and silence the notes. Play() resumes from here. */
+   public void Pause()
+   {
+      Post(new Command(CommandPause));
+   }
+
+   /**
+    * Play faster or slower than the tempo of the pipeline. A rate of 2.0 is
+    * twice as fast. This takes effect at once, even while playing.
+    */
+   public void SetRate(double rate)
+   {
+      Command command = new Command(CommandRate);
+      command.rate = rate;
+      Post(command);
+   }
+
+   /** Send a message to the receiver, after the events already sent */
+   public void Send(MidiMessage message)
+   {
+      Command command = new Command(CommandSend);
+      command.message = message;
+      Post(command);
+   }
+
+   /** Stop the scheduler thread, and wait for it to finish */
+   public void Close()
+   {
+      Post(new Command(CommandQuit));
+      try
+      {
+         thread.join();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /** Return the pulse time the music is at, from the start of the pipeline */
+   public double getPulseTime()
+   {
+      return clock.PulseAt(System.nanoTime());
+   }
+
+   /** Return true if the music is playing */
+   public boolean IsPlaying()
+   {
+      return clock.running;
+   }
+
+   /** The scheduler thread: run the commands, and send the events on time */
+   public void run()
+   {
+      while (true)
+      {
+         Command command;
+         while ((command = commands.Poll()) != null)
+         {
+            if (command.kind == CommandQuit)
+            {
+               Silence();
+               return;
+            }
+            Execute(command);
+         }
+
+         if (!playing || heapsize == 0)
+         {
+            LockSupport.park(this);
+            continue;
+         }
+
+         PipelineEvent ev = heap[0];
+         long deadline = DeadlineOf(ev.StartTime);
+         long remaining = deadline - System.nanoTime();
+         if (remaining > SpinNanos)
+         {
+            /* Wake up early, or when a command arrives */
+            LockSupport.parkNanos(this, remaining - SpinNanos);
+            continue;
+         }
+         while (remaining > 0 && commands.IsEmpty())
+         {
+            Thread.yield();
+            remaining = deadline - System.nanoTime();
+         }
+         if (remaining > 0)
+            continue;
+
+         Dispatch(ev, deadline);
+         if (pipeline.Next(ev))
+         {
+            SiftDown(0);
+         }
+         else
+         {
+            heap[0] = heap[--heapsize];
+            heap[heapsize] = null;
+            SiftDown(0);
+         }
+      }
+   }
+
+   /** Run a command from the player */
+   private void Execute(Command command)
+   {
+      long now = System.nanoTime();
+      switch (command.kind)
+      {
+      case CommandSeek:
+         Silence();
+         Load(command.pipeline);
+         quarter = command.quarter;
+         tempo = command.tempo;
+         nanosPerPulse = NanosPerPulse();
+         Anchor(now, 0);
+         break;
+      case CommandPlay:
+         if (!playing && pipeline != null)
+         {
+            playing = true;
+            Anchor(now, anchorPulse);
+         }
+         break;
+      case CommandPause:
+         if (playing)
+         {
+            Anchor(now, PulseNow(now));
+            playing = false;
+            Silence();
+            Publish();
+         }
+         break;
+      case CommandRate:
+         double pulse = playing ? PulseNow(now) : anchorPulse;
+         rate = command.rate;
+         nanosPerPulse = NanosPerPulse();
+         Anchor(now, pulse);
+         break;
+      case CommandSend:
+         if (receiver != null)
+            receiver.send(command.message, -1);
+         break;
+      }
+   }
+
+   /**
+    * Return the pulse time at the given nanoTime. It doesn't pass the next
+    * event, which hasn't been sent yet.
+    */
+   private double PulseNow(long now)
+   {
+      double pulse = anchorPulse + (now - anchorNanos) / nanosPerPulse;
+      if (heapsize > 0)
+      {
+         pulse = Math.min(pulse, heap[0].StartTime);
+      }
+      return pulse;
+   }
+
+   /** Time the following events from the given pulse, at the given nanoTime */
+   private void Anchor(long nanos, double pulse)
+   {
+      anchorNanos = nanos;
+      anchorPulse = pulse;
+      Publish();
+   }
+
+   /** Publish the current timing for the player */
+   private void Publish()
+   {
+      clock = new Clock(anchorNanos, anchorPulse, nanosPerPulse, playing);
+   }
+
+   /** Return the length of a pulse, in nanoseconds */
+   private double NanosPerPulse()
+   {
+      return tempo * 1000.0 / quarter / rate;
+   }
+
+   /** Return the nanoTime at which the given pulse time is due */
+   private long DeadlineOf(int pulse)
+   {
+      return anchorNanos + (long) ((pulse - anchorPulse) * nanosPerPulse);
+   }
+
+   /** Open a cursor for each track of the pipeline, and build the heap */
+   private void Load(MidiEventPipeline pipeline)
+   {
+      this.pipeline = pipeline;
+      int[] tracks = pipeline.GetTracks();
+      heap = new PipelineEvent[tracks.length];
+      heapsize = 0;
+      for (int tracknum : tracks)
+      {
+         PipelineEvent ev = pipeline.Open(tracknum);
+         if (pipeline.Next(ev))
+         {
+            heap[heapsize++] = ev;
+         }
+      }
+      for (int i = heapsize / 2 - 1; i >= 0; i--)
+      {
+         SiftDown(i);
+      }
+   }
+
+   /**
+    * Return true if event a comes before event b. Events at the same time
+    * keep the order of their tracks, as in a type 1 midi file.
+    */
+   private static boolean Before(PipelineEvent a, PipelineEvent b)
+   {
+      if (a.StartTime != b.StartTime)
+         return a.StartTime < b.StartTime;
+      return a.getTrack() < b.getTrack();
+   }
+
+   /** Move the cursor at the given heap position down to its place */
+   private void SiftDown(int i)
+   {
+      PipelineEvent ev = heap[i];
+      while (true)
+      {
+         int child = 2 * i + 1;
+         if (child >= heapsize)
+            break;
+         if (child + 1 < heapsize && Before(heap[child + 1], heap[child]))
+         {
+            child++;
+         }
+         if (!Before(heap[child], ev))
+            break;
+         heap[i] = heap[child];
+         i = child;
+      }
+      heap[i] = ev;
+   }
+
+   /**
+    * Send the event to the receiver. A tempo event changes the timing of the
+    * following events, counted from this event's deadline, so the time
+    * doesn't drift when an event is sent late.
+    */
+   private void Dispatch(PipelineEvent ev, long deadline)
+   {
+      if (ev.getMetaevent() == MidiFile.MetaEventTempo)
+      {
+         if (ev.getTempo() > 0)
+         {
+            tempo = ev.getTempo();
+            nanosPerPulse = NanosPerPulse();
+            Anchor(deadline, ev.StartTime);
+         }
+         return;
+      }
+      if (receiver == null)
+         return;
+      MidiMessage message = CreateMessage(ev);
+      if (message != null)
+      {
+         receiver.send(message, -1);
+      }
+   }
+
+   /**
+    * Return the message to send for the given event, or null for the events
+    * that don't go to a synthesizer: meta events, and events with invalid
+    * data.
+    */
+   static MidiMessage CreateMessage(PipelineEvent ev)
+   {
+      try
+      {
+         if (ev.EventFlag == MidiFile.MetaEvent)
+         {
+            return null;
+         }
+         else if (ev.EventFlag == MidiFile.SysexEvent1
+               || ev.EventFlag == MidiFile.SysexEvent2)
+         {
+            byte[] data = ev.getBytes();
+            return new SysexMessage(ev.EventFlag, data, data.length);
+         }
+         else
+         {
+            return new ShortMessage(ev.EventFlag, ev.Channel, ev.Data1,
+                  ev.Data2);
+         }
+      }
+      catch (InvalidMidiDataException e)
+      {
+         return null;
+      }
+   }
+
+   /** Silence the notes still sounding: All Sound Off on each channel */
+   private void Silence()
+   {
+      if (receiver == null)
+         return;
+      for (int channel = 0; channel < 16; channel++)
+      {
+         try
+         {
+            receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE,
+                  channel, 120, 0), -1);
+         }
+         catch (InvalidMidiDataException e)
+         {
+         }
+      }
+   }
+}
@@ -25,25 +25,51 @@ import java.util.List;
  *        added to the track, using the AddNote() method.
  * 
  *        The NoteOff() method is called when a NoteOff event is encountered, in
- *        order to update the duration of the MidiNote.
+ *        order to update the duration of the MidiNote. While the track is
+ *        built from its events, the notes that haven't ended yet are kept in
+ *        a PendingNotes table, so each NoteOff is paired in constant time.
+ * 
+ *        If the notes of the track use more than one channel,
+ *        SplitChannels() sorts them by channel into one MidiTrack per
+ *        channel. MidiFile only does so when a song has a single track of
+ *        notes, so the notes of other tracks are never copied.
+ * 
+ *        The notes are kept in a NoteTable. getNotes() returns them as a List
+ *        of MidiNotes that reads and writes the table, and Clone() shares the
+ *        table arrays until one of the tracks changes its notes.
  */
 public class MidiTrack
 {
    private int tracknum;
    /** The track number */
-   private List<MidiNote> notes;
-   /** List of Midi notes */
+   private NoteTable notes;
+   /** The Midi notes */
    private int instrument;
    /** Instrument for this track */
    private List<MidiEvent> lyrics;
 
    /** The lyrics : this track */
+   private PendingNotes pending;
+
+   /** The notes that haven't ended yet, while building the track */
+   private int[] channelprograms;
+
+   /**
+    * The last instrument of each channel, or null if the notes use a single
+    * channel
+    */
+
+   /** A NoteOff ends the most recent pending note with the same number */
+   public static final int NoteOffLifo = 0;
+
+   /** A NoteOff ends the oldest pending note with the same number */
+   public static final int NoteOffFifo = 1;
 
    /** Create an empty MidiTrack. Used by the Clone method */
    public MidiTrack(int tracknum)
    {
       this.tracknum = tracknum;
-      notes = new ArrayList<MidiNote>();
+      notes = new NoteTable();
       instrument = 0;
    }
 
@@ -51,20 +77,78 @@ public class MidiTrack
     * Create a MidiTrack based on the Midi events. Extract the NoteOn/NoteOff
     * events to gather the list of MidiNotes.
     */
-   public MidiTrack(List<MidiEvent> events, int tracknum)
+   public MidiTrack(MidiEventList events, int tracknum)
+   {
+      this(events, tracknum, NoteOffLifo);
+   }
+
+   /**
+    * Create a MidiTrack based on the Midi events. When the same note is
+    * started again before it ends, the policy (NoteOffLifo or NoteOffFifo)
+    * decides which note a NoteOff ends.
+    */
+   public MidiTrack(MidiEventList events, int tracknum, int policy)
    {
       this.tracknum = tracknum;
-      notes = new ArrayList<MidiNote>();
+      notes = new NoteTable(events.Count() / 2);
       instrument = 0;
+      pending = new PendingNotes(notes, policy);
+
+      /* The last instrument of each channel, and whether the notes use more
+       * than one channel.
+       */
+      int[] programs = new int[16];
+      int firstchannel = -1;
+      boolean multichannel = false;
 
-      for (MidiEvent mevent : events)
+      for (int i = 0; i < events.Count(); i++)
       {
-         processEvent(mevent);
+         int eventflag = events.getEventFlag(i);
+         if (eventflag == MidiFile.EventNoteOn && events.getData2(i) > 0)
+         {
+            int channel = events.getChannel(i);
+            int row = notes.Add(events.getStartTime(i), channel,
+                  events.getData1(i), 0);
+            pending.NoteOn(row);
+            if (firstchannel < 0)
+            {
+               firstchannel = channel;
+            }
+            else if (channel != firstchannel)
+            {
+               multichannel = true;
+            }
+         }
+         else if (eventflag == MidiFile.EventNoteOn
+               || eventflag == MidiFile.EventNoteOff)
+         {
+            NoteOff(events.getChannel(i), events.getData1(i),
+                  events.getStartTime(i));
+         }
+         else if (eventflag == MidiFile.EventProgramChange)
+         {
+            instrument = events.getData1(i);
+            programs[events.getChannel(i)] = instrument;
+         }
+         else if (events.getMetaevent(i) == MidiFile.MetaEventLyric)
+         {
+            if (lyrics == null)
+            {
+               lyrics = new ArrayList<MidiEvent>();
+            }
+            lyrics.add(events.GetEvent(i));
+         }
       }
-      if (notes.size() > 0 && notes.get(0).getChannel() == 9)
+      pending = null;
+      if (notes.Count() > 0 && notes.getChannel(0) == 9)
       {
          instrument = 128; /* Percussion */
       }
+      if (multichannel)
+      {
+         programs[9] = 128; /* Channel 9 = Percussion */
+         channelprograms = programs;
+      }
       // int lyriccount = 0;
       // if (lyrics != null)
       // {
@@ -72,6 +156,37 @@ public class MidiTrack
       // }
    }
 
+   /**
+    * Return the notes of this track split into one track per channel, in a
+    * single pass. The tracks are numbered from 1, in order of the first note
+    * of each channel, and get the last instrument of their channel. Return
+    * null if the notes use a single channel, or if the track wasn't built
+    * from Midi events. The tracks are new on each call.
+    */
+   List<MidiTrack> SplitChannels()
+   {
+      if (channelprograms == null)
+      {
+         return null;
+      }
+      MidiTrack[] bychannel = new MidiTrack[16];
+      List<MidiTrack> channeltracks = new ArrayList<MidiTrack>();
+      for (int i = 0; i < notes.Count(); i++)
+      {
+         int channel = notes.getChannel(i);
+         MidiTrack track = bychannel[channel];
+         if (track == null)
+         {
+            track = new MidiTrack(channeltracks.size() + 1);
+            track.instrument = channelprograms[channel];
+            bychannel[channel] = track;
+            channeltracks.add(track);
+         }
+         track.notes.Add(notes, i);
+      }
+      return channeltracks;
+   }
+
    private void processEvent(MidiEvent mevent)
    {
       if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity > 0)
@@ -105,11 +220,11 @@ public class MidiTrack
    public MidiTrack(MidiEvent midiEvent, int tracknum2)
    {
       this.tracknum = tracknum2;
-      notes = new ArrayList<MidiNote>();
+      notes = new NoteTable();
       instrument = 0;
 
       processEvent(midiEvent);
-      if (notes.size() > 0 && notes.get(0).getChannel() == 9)
+      if (notes.Count() > 0 && notes.getChannel(0) == 9)
       {
          instrument = 128; /* Percussion */
       }
@@ -126,6 +241,12 @@ public class MidiTrack
    }
 
    public List<MidiNote> getNotes()
+   {
+      return notes.AsList();
+   }
+
+   /** Return the notes of this track, as a NoteTable */
+   public NoteTable getNoteTable()
    {
       return notes;
    }
@@ -162,7 +283,12 @@ public class MidiTrack
    /** Add a MidiNote to this track. This is called for each NoteOn event */
    public void AddNote(MidiNote m)
    {
-      notes.add(m);
+      int row = notes.Add(m.getStartTime(), m.getChannel(),
+            m.getNoteNumber(), m.getDuration());
+      if (pending != null && m.getDuration() == 0)
+      {
+         pending.NoteOn(row);
+      }
    }
 
    /**
@@ -171,27 +297,32 @@ public class MidiTrack
     */
    public void NoteOff(int channel, int notenumber, int endtime)
    {
-      for (int i = notes.size() - 1; i >= 0; i--)
+      if (pending != null)
       {
-         MidiNote note = notes.get(i);
-         if (note.getChannel() == channel && note.getNoteNumber() == notenumber
-               && note.getDuration() == 0)
+         pending.NoteOff(channel, notenumber, endtime);
+         return;
+      }
+      for (int i = notes.Count() - 1; i >= 0; i--)
+      {
+         if (notes.getChannel(i) == channel
+               && notes.getNoteNumber(i) == notenumber
+               && notes.getDuration(i) == 0)
          {
-            note.NoteOff(endtime);
+            notes.setDuration(i, endtime - notes.getStartTime(i));
             return;
          }
       }
    }
 
-   /** Return a deep copy clone of this MidiTrack. */
+   /**
+    * Return a deep copy clone of this MidiTrack. The notes are copied when
+    * either track first changes them.
+    */
    public MidiTrack Clone()
    {
       MidiTrack track = new MidiTrack(getNumber());
       track.instrument = instrument;
-      for (MidiNote note : notes)
-      {
-         track.notes.add(note.Clone());
-      }
+      track.notes = notes.Clone();
       if (lyrics != null)
       {
          track.lyrics = new ArrayList<MidiEvent>();
@@ -208,7 +339,7 @@ public class MidiTrack
    {
       String result = "Track number=" + tracknum + " instrument=" + instrument
             + "\n";
-      for (MidiNote n : notes)
+      for (MidiNote n : notes.AsList())
       {
          result = result + n + "\n";
       }
@@ -0,0 +1,558 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @class NoteTable The NoteTable holds the notes of one track, stored column
+ *        by column in int arrays instead of one MidiNote object per note. Note
+ *        i is described by starttime[i], channel[i], notenumber[i] and
+ *        duration[i]. The notes are kept in order of start time, and note
+ *        number within the same start time (the MidiNote order); Sort()
+ *        restores the order after the start times are changed.
+ * 
+ *        Clone() is cheap: the copy shares the arrays of the original, until
+ *        one of the two is changed. Only then are the arrays copied.
+ * 
+ *        AsList() returns the notes as a List of MidiNotes. Each MidiNote of
+ *        the list reads and writes its row of the table, so changes made
+ *        through the list are changes to the table.
+ * 
+ *        The table also counts its notes by pitch class (C, C#, D, ...),
+ *        keeping the counts up to date as notes are added, removed or
+ *        changed. KeySignature.Guess() uses these counts, so guessing a key
+ *        doesn't need a pass over the notes.
+ */
+public class NoteTable
+{
+   private int count;
+   /** The number of notes */
+   private int[] starttime;
+   /** The start time of each note, in pulses */
+   private int[] channel;
+   /** The channel of each note */
+   private int[] notenumber;
+   /** The note number of each note, from 0 to 127 */
+   private int[] duration;
+   /** The duration of each note, in pulses */
+   private boolean shared;
+   /** True if the arrays are shared with a clone */
+   private int[] pitchcount;
+   /** The number of notes in each NoteScale (A, A#, B, ...) */
+   private List<MidiNote> list;
+
+   /** The list view of the table, created when first needed */
+
+   /** Create an empty NoteTable */
+   public NoteTable()
+   {
+      this(16);
+   }
+
+   /** Create an empty NoteTable with room for the given number of notes */
+   public NoteTable(int capacity)
+   {
+      if (capacity < 1)
+         capacity = 1;
+      starttime = new int[capacity];
+      channel = new int[capacity];
+      notenumber = new int[capacity];
+      duration = new int[capacity];
+      count = 0;
+      shared = false;
+      pitchcount = new int[12];
+   }
+
+   /** Return the number of notes */
+   public int Count()
+   {
+      return count;
+   }
+
+   /** Return the start time of note i, in pulses */
+   public int getStartTime(int i)
+   {
+      return starttime[i];
+   }
+
+   /** Return the channel of note i */
+   public int getChannel(int i)
+   {
+      return channel[i];
+   }
+
+   /** Return the note number of note i */
+   public int getNoteNumber(int i)
+   {
+      return notenumber[i];
+   }
+
+   /** Return the duration of note i, in pulses */
+   public int getDuration(int i)
+   {
+      return duration[i];
+   }
+
+   /** Return the end time of note i, in pulses */
+   public int getEndTime(int i)
+   {
+      return starttime[i] + duration[i];
+   }
+
+   /**
+    * Return the number of notes in the given NoteScale (A = 0, A# = 1, ...
+    * G# = 11), over all octaves
+    */
+   public int getPitchCount(int notescale)
+   {
+      return pitchcount[notescale];
+   }
+
+   /** Add the number of notes in each NoteScale to the given counts */
+   public void AddPitchCounts(int[] counts)
+   {
+      for (int n = 0; n < 12; n++)
+      {
+         counts[n] += pitchcount[n];
+      }
+   }
+
+   /** Set the start time of note i */
+   public void setStartTime(int i, int value)
+   {
+      own();
+      starttime[i] = value;
+   }
+
+   /** Set the channel of note i */
+   public void setChannel(int i, int value)
+   {
+      own();
+      channel[i] = value;
+   }
+
+   /** Set the note number of note i */
+   public void setNoteNumber(int i, int value)
+   {
+      own();
+      pitchcount[NoteScale.FromNumber(notenumber[i])]--;
+      pitchcount[NoteScale.FromNumber(value)]++;
+      notenumber[i] = value;
+   }
+
+   /** Set the duration of note i */
+   public void setDuration(int i, int value)
+   {
+      own();
+      duration[i] = value;
+   }
+
+   /** Make sure the arrays are not shared with a clone, before a change */
+   private void own()
+   {
+      if (shared)
+      {
+         int capacity = Math.max(count, 1);
+         starttime = Arrays.copyOf(starttime, capacity);
+         channel = Arrays.copyOf(channel, capacity);
+         notenumber = Arrays.copyOf(notenumber, capacity);
+         duration = Arrays.copyOf(duration, capacity);
+         shared = false;
+      }
+   }
+
+   /** Make room for one more note, and return its index */
+   private int grow()
+   {
+      own();
+      if (count == starttime.length)
+      {
+         int capacity = count * 2;
+         starttime = Arrays.copyOf(starttime, capacity);
+         channel = Arrays.copyOf(channel, capacity);
+         notenumber = Arrays.copyOf(notenumber, capacity);
+         duration = Arrays.copyOf(duration, capacity);
+      }
+      return count++;
+   }
+
+   /** Add a note at the end of the table. Return its index. */
+   public int Add(int starttime, int channel, int notenumber, int duration)
+   {
+      int i = grow();
+      this.starttime[i] = starttime;
+      this.channel[i] = channel;
+      this.notenumber[i] = notenumber;
+      this.duration[i] = duration;
+      pitchcount[NoteScale.FromNumber(notenumber)]++;
+      return i;
+   }
+
+   /** Add note i of the given table at the end of this table */
+   public int Add(NoteTable source, int i)
+   {
+      return Add(source.starttime[i], source.channel[i], source.notenumber[i],
+            source.duration[i]);
+   }
+
+   /** Insert a note at index i, moving the later notes up */
+   public void Insert(int i, int starttime, int channel, int notenumber,
+         int duration)
+   {
+      grow();
+      int moved = count - 1 - i;
+      System.arraycopy(this.starttime, i, this.starttime, i + 1, moved);
+      System.arraycopy(this.channel, i, this.channel, i + 1, moved);
+      System.arraycopy(this.notenumber, i, this.notenumber, i + 1, moved);
+      System.arraycopy(this.duration, i, this.duration, i + 1, moved);
+      this.starttime[i] = starttime;
+      this.channel[i] = channel;
+      this.notenumber[i] = notenumber;
+      this.duration[i] = duration;
+      pitchcount[NoteScale.FromNumber(notenumber)]++;
+   }
+
+   /** Remove note i, moving the later notes down */
+   public void Remove(int i)
+   {
+      own();
+      pitchcount[NoteScale.FromNumber(notenumber[i])]--;
+      int moved = count - 1 - i;
+      System.arraycopy(starttime, i + 1, starttime, i, moved);
+      System.arraycopy(channel, i + 1, channel, i, moved);
+      System.arraycopy(notenumber, i + 1, notenumber, i, moved);
+      System.arraycopy(duration, i + 1, duration, i, moved);
+      count--;
+   }
+
+   /** Remove all the notes */
+   public void Clear()
+   {
+      own();
+      count = 0;
+      Arrays.fill(pitchcount, 0);
+   }
+
+   /**
+    * Return a copy of this table. The copy shares the arrays of this table
+    * until either one is changed.
+    */
+   public NoteTable Clone()
+   {
+      NoteTable table = new NoteTable(1);
+      table.count = count;
+      table.starttime = starttime;
+      table.channel = channel;
+      table.notenumber = notenumber;
+      table.duration = duration;
+      table.pitchcount = pitchcount.clone();
+      table.shared = true;
+      shared = true;
+      return table;
+   }
+
+   /**
+    * Sort the notes by start time, and by note number within the same start
+    * time. Notes that compare equal keep their order, the same as
+    * Collections.sort() on a list of MidiNotes.
+    */
+   public void Sort()
+   {
+      boolean sorted = true;
+      for (int i = 1; i < count && sorted; i++)
+      {
+         sorted = !After(i - 1, i);
+      }
+      if (sorted)
+         return;
+
+      int[] order = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         order[i] = i;
+      }
+      MergeSort(order, new int[count], 0, count);
+
+      int[] newstart = new int[starttime.length];
+      int[] newchannel = new int[starttime.length];
+      int[] newnumber = new int[starttime.length];
+      int[] newduration = new int[starttime.length];
+      for (int i = 0; i < count; i++)
+      {
+         int from = order[i];
+         newstart[i] = starttime[from];
+         newchannel[i] = channel[from];
+         newnumber[i] = notenumber[from];
+         newduration[i] = duration[from];
+      }
+      starttime = newstart;
+      channel = newchannel;
+      notenumber = newnumber;
+      duration = newduration;
+      shared = false;
+   }
+
+   /**
+    * Move note i back to its place among notes 0 to i-1, which must already
+    * be sorted. Return the new index of the note. This is an insertion sort
+    * step: it costs nothing when the note is already in place, and creates no
+    * arrays, so it suits changes that move a note by only a few places.
+    */
+   public int MoveBack(int i)
+   {
+      if (i == 0 || !After(i - 1, i))
+         return i;
+
+      own();
+      int start = starttime[i];
+      int chan = channel[i];
+      int number = notenumber[i];
+      int dur = duration[i];
+      int j = i;
+      while (j > 0
+            && (starttime[j - 1] > start || (starttime[j - 1] == start && notenumber[j - 1] > number)))
+      {
+         starttime[j] = starttime[j - 1];
+         channel[j] = channel[j - 1];
+         notenumber[j] = notenumber[j - 1];
+         duration[j] = duration[j - 1];
+         j--;
+      }
+      starttime[j] = start;
+      channel[j] = chan;
+      notenumber[j] = number;
+      duration[j] = dur;
+      return j;
+   }
+
+   /** Return true if note i comes after note j, in MidiNote order */
+   private boolean After(int i, int j)
+   {
+      if (starttime[i] == starttime[j])
+         return notenumber[i] > notenumber[j];
+      return starttime[i] > starttime[j];
+   }
+
+   /**
+    * Sort order[start, end) by the notes they refer to. The sort is a stable
+    * merge sort, with an insertion sort for short runs.
+    */
+   private void MergeSort(int[] order, int[] temp, int start, int end)
+   {
+      if (end - start <= 16)
+      {
+         for (int i = start + 1; i < end; i++)
+         {
+            int note = order[i];
+            int j = i - 1;
+            while (j >= start && After(order[j], note))
+            {
+               order[j + 1] = order[j];
+               j--;
+            }
+            order[j + 1] = note;
+         }
+         return;
+      }
+      int mid = (start + end) >>> 1;
+      MergeSort(order, temp, start, mid);
+      MergeSort(order, temp, mid, end);
+      if (!After(order[mid - 1], order[mid]))
+         return;
+
+      System.arraycopy(order, start, temp, start, end - start);
+      int left = start, right = mid;
+      for (int i = start; i < end; i++)
+      {
+         if (right >= end || (left < mid && !After(temp[left], temp[right])))
+            order[i] = temp[left++];
+         else
+            order[i] = temp[right++];
+      }
+   }
+
+   /** Return note i as a MidiNote that is not tied to this table */
+   public MidiNote GetNote(int i)
+   {
+      return new MidiNote(starttime[i], channel[i], notenumber[i], duration[i]);
+   }
+
+   /**
+    * Return the notes as a List of MidiNotes. The MidiNotes read and write
+    * their row of this table, and adding or removing notes through the list
+    * adds or removes rows.
+    */
+   public List<MidiNote> AsList()
+   {
+      if (list == null)
+      {
+         list = new Notes();
+      }
+      return list;
+   }
+
+   /** The list view returned by AsList() */
+   private class Notes extends AbstractList<MidiNote>
+   {
+      public int size()
+      {
+         return count;
+      }
+
+      public MidiNote get(int i)
+      {
+         if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + count);
+         return new Row(NoteTable.this, i);
+      }
+
+      public MidiNote set(int i, MidiNote note)
+      {
+         MidiNote old = GetNote(i);
+         int start = note.getStartTime();
+         int chan = note.getChannel();
+         int number = note.getNoteNumber();
+         int dur = note.getDuration();
+         own();
+         pitchcount[NoteScale.FromNumber(notenumber[i])]--;
+         pitchcount[NoteScale.FromNumber(number)]++;
+         starttime[i] = start;
+         channel[i] = chan;
+         notenumber[i] = number;
+         duration[i] = dur;
+         return old;
+      }
+
+      public void add(int i, MidiNote note)
+      {
+         if (i < 0 || i > count)
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + count);
+         Insert(i, note.getStartTime(), note.getChannel(),
+               note.getNoteNumber(), note.getDuration());
+         modCount++;
+      }
+
+      public MidiNote remove(int i)
+      {
+         if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + count);
+         MidiNote old = GetNote(i);
+         Remove(i);
+         modCount++;
+         return old;
+      }
+
+      /**
+       * Return copies of the notes that are not tied to the table, so that
+       * sorting the list (which copies it to an array, sorts the array, and
+       * writes it back) works.
+       */
+      public Object[] toArray()
+      {
+         Object[] result = new Object[count];
+         for (int i = 0; i < count; i++)
+         {
+            result[i] = GetNote(i);
+         }
+         return result;
+      }
+
+      @SuppressWarnings("unchecked")
+      public <T> T[] toArray(T[] result)
+      {
+         if (result.length < count)
+         {
+            result = Arrays.copyOf(result, count);
+         }
+         for (int i = 0; i < count; i++)
+         {
+            result[i] = (T) GetNote(i);
+         }
+         if (result.length > count)
+         {
+            result[count] = null;
+         }
+         return result;
+      }
+   }
+
+   /** A MidiNote that reads and writes row i of a NoteTable */
+   private static class Row extends MidiNote
+   {
+      private NoteTable table;
+      private int row;
+
+      Row(NoteTable table, int row)
+      {
+         this.table = table;
+         this.row = row;
+      }
+
+      public int getStartTime()
+      {
+         return table.starttime[row];
+      }
+
+      public void setStartTime(int value)
+      {
+         table.setStartTime(row, value);
+      }
+
+      public int getChannel()
+      {
+         return table.channel[row];
+      }
+
+      public void setChannel(int value)
+      {
+         table.setChannel(row, value);
+      }
+
+      public int getNoteNumber()
+      {
+         return table.notenumber[row];
+      }
+
+      public void setNoteNumber(int value)
+      {
+         table.setNoteNumber(row, value);
+      }
+
+      public int getDuration()
+      {
+         return table.duration[row];
+      }
+
+      public void setDuration(int value)
+      {
+         table.setDuration(row, value);
+      }
+
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Row))
+            return false;
+         Row other = (Row) o;
+         return table == other.table && row == other.row;
+      }
+
+      public int hashCode()
+      {
+         return System.identityHashCode(table) * 31 + row;
+      }
+   }
+}
@@ -0,0 +1,112 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.Arrays;
+
+/**
+ * @class PendingNotes The PendingNotes table pairs NoteOff events with the
+ *        NoteOn events they end, in constant time. There is one list of
+ *        pending notes for each of the 16 channels and 128 note numbers. The
+ *        notes are rows of a NoteTable, and the lists are linked through an
+ *        int[] of next rows, so no objects are created per note.
+ * 
+ *        When the same note is started again before it ends, a NoteOff ends
+ *        either the most recent pending note (MidiTrack.NoteOffLifo), or the
+ *        oldest one (MidiTrack.NoteOffFifo).
+ * 
+ *        A NoteOff at the same time as its NoteOn leaves the note with a
+ *        duration of 0, and the note stays pending, so the next NoteOff for
+ *        that note number ends it.
+ */
+class PendingNotes
+{
+   private NoteTable notes;
+   /** The notes of the track */
+   private int policy;
+   /** MidiTrack.NoteOffLifo or MidiTrack.NoteOffFifo */
+   private int[] head;
+   /** The first pending row of each channel/note number, or -1 */
+   private int[] tail;
+   /** The last pending row of each channel/note number, or -1 */
+   private int[] next;
+
+   /** The next pending row in the same list as each row, or -1 */
+
+   /** Create an empty table for the rows of the given notes */
+   PendingNotes(NoteTable notes, int policy)
+   {
+      this.notes = notes;
+      this.policy = policy;
+      head = new int[16 * 128];
+      tail = new int[16 * 128];
+      Arrays.fill(head, -1);
+      Arrays.fill(tail, -1);
+      next = new int[64];
+   }
+
+   /** Add the given row, a note that has not ended yet */
+   void NoteOn(int row)
+   {
+      int key = Key(notes.getChannel(row), notes.getNoteNumber(row));
+      if (row >= next.length)
+      {
+         next = Arrays.copyOf(next, Math.max(row + 1, next.length * 2));
+      }
+      if (tail[key] < 0)
+      {
+         next[row] = -1;
+         head[key] = row;
+         tail[key] = row;
+      }
+      else if (policy == MidiTrack.NoteOffFifo)
+      {
+         next[row] = -1;
+         next[tail[key]] = row;
+         tail[key] = row;
+      }
+      else
+      {
+         next[row] = head[key];
+         head[key] = row;
+      }
+   }
+
+   /**
+    * A NoteOff event occured. Set the duration of the matching pending note,
+    * if any.
+    */
+   void NoteOff(int channel, int notenumber, int endtime)
+   {
+      int key = Key(channel, notenumber);
+      int row = head[key];
+      if (row < 0)
+         return;
+
+      int duration = endtime - notes.getStartTime(row);
+      notes.setDuration(row, duration);
+      if (duration == 0)
+         return;
+
+      head[key] = next[row];
+      if (head[key] < 0)
+         tail[key] = -1;
+   }
+
+   /** Return the list of the given channel and note number */
+   private static int Key(int channel, int notenumber)
+   {
+      return ((channel & 0x0F) << 7) | (notenumber & 0x7F);
+   }
+}
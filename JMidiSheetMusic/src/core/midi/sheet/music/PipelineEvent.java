@@ -0,0 +1,157 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+/**
+ * @class PipelineEvent A PipelineEvent is one event as it passes through a
+ *        MidiEventPipeline. It starts as a copy of the fields of an event of
+ *        a MidiEventList, which the stages then change. The data fields have
+ *        the same layout as the MidiEventList columns: for a meta event,
+ *        Data1 is the metaevent code, and Data2 is the tempo of a tempo
+ *        event.
+ * 
+ *        The sysex/meta data is not copied. It is read from the source list
+ *        when the event is written, so stages can't change it.
+ * 
+ *        One PipelineEvent is used for a whole track, as returned by
+ *        MidiEventPipeline.Open(), and it also holds the position in the
+ *        track. The fields should not be changed between calls to Next(),
+ *        except by the stages.
+ */
+public class PipelineEvent
+{
+   public int StartTime;
+   /** The absolute time this event occurs */
+   public int DeltaTime;
+   /** The time between the previous event and this one */
+   public int EventFlag;
+   /** NoteOn, NoteOff, etc. Full list is in class MidiFile */
+   public int Channel;
+   /** The channel this event occurs on */
+   public int Data1;
+   /** The first data byte, or the metaevent code */
+   public int Data2;
+   /** The second data byte, or the tempo */
+
+   int track;
+   /** The number of the track being read */
+   MidiEventList source;
+   /** The events of the track */
+   int index;
+   /** The index of this event in source, or -1 for an inserted event */
+   int next;
+   /** The index of the next event to read from source */
+   MidiEventStage[] stages;
+
+   /** The stages, as started for this track */
+
+   PipelineEvent(int track, MidiEventList source, MidiEventStage[] stages)
+   {
+      this.track = track;
+      this.source = source;
+      this.stages = stages;
+      index = -1;
+      next = -1;
+   }
+
+   /** Return the number of the track this event is from */
+   public int getTrack()
+   {
+      return track;
+   }
+
+   /** Return the events of the track this event is from */
+   public MidiEventList getSource()
+   {
+      return source;
+   }
+
+   /** Return the index of this event in getSource(), or -1 if inserted */
+   public int getIndex()
+   {
+      return index;
+   }
+
+   /** Return true if the pipeline added this event, such as the start tempo */
+   public boolean IsInserted()
+   {
+      return index < 0;
+   }
+
+   /** Return the metaevent code, or -1 if this is not a meta event */
+   public int getMetaevent()
+   {
+      if (EventFlag != MidiFile.MetaEvent)
+         return -1;
+      return Data1;
+   }
+
+   /** Return the length of the sysex/meta data */
+   public int getMetalength()
+   {
+      if (index < 0)
+         return 3;
+      return source.getMetalength(index);
+   }
+
+   /** Return the tempo of a tempo meta event */
+   public int getTempo()
+   {
+      return Data2;
+   }
+
+   /**
+    * Return a copy of the sysex/meta data. The data of a tempo event comes
+    * from Data2, so it follows any change made by the stages.
+    */
+   public byte[] getBytes()
+   {
+      if (getMetaevent() == MidiFile.MetaEventTempo)
+      {
+         return new byte[] { (byte) (Data2 >> 16), (byte) (Data2 >> 8),
+               (byte) Data2 };
+      }
+      return source.getBytes(index);
+   }
+
+   /** Write the sysex/meta data to the given writer */
+   void WritePayload(MidiFileWriter out)
+   {
+      source.WritePayload(index, out);
+   }
+
+   /** Set the fields to those of event i of the source */
+   void Load(int i)
+   {
+      index = i;
+      StartTime = source.getStartTime(i);
+      DeltaTime = source.getDeltaTime(i);
+      EventFlag = source.getEventFlag(i);
+      Channel = source.getChannel(i);
+      Data1 = source.getData1(i);
+      Data2 = source.getData2(i);
+   }
+
+   /** Set the fields to a tempo event at time 0 */
+   void LoadTempo(int tempo)
+   {
+      index = -1;
+      StartTime = 0;
+      DeltaTime = 0;
+      EventFlag = MidiFile.MetaEvent;
+      Channel = 0;
+      Data1 = MidiFile.MetaEventTempo;
+      Data2 = tempo;
+   }
+}
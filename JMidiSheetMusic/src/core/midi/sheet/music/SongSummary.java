@@ -0,0 +1,184 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.List;
+
+/**
+ * @class SongSummary A SongSummary holds the facts about a song that would
+ *        otherwise need a scan over all the tracks: its end time and length,
+ *        the number of notes in each track, the lowest and highest note, the
+ *        channels used, whether it has lyrics, and its first tempo and time
+ *        signature.
+ * 
+ *        MidiFile creates the summary once, when the file is parsed, and
+ *        answers EndTime(), HasLyrics() and getTotalPulses() from it. The
+ *        summary cannot be changed, so it can be shared freely, and it is
+ *        cheap to keep in an index of many songs.
+ */
+public final class SongSummary
+{
+   private final int endtime;
+   /** The start time of the last note, in pulses */
+   private final int totalpulses;
+   /** The length of the song, in pulses */
+   private final int[] notecounts;
+   /** The number of notes in each track */
+   private final int lownote;
+   /** The lowest note number, or -1 if there are no notes */
+   private final int highnote;
+   /** The highest note number, or -1 if there are no notes */
+   private final int channels;
+   /** Bit c is set if channel c has notes */
+   private final boolean lyrics;
+   /** True if any track has lyrics */
+   private final TimeSignature timesig;
+   /** The time signature and tempo at the start of the song */
+
+   /**
+    * Create the summary of the given tracks. The total length is passed in,
+    * since it is found while parsing, before the tracks are split by
+    * channel.
+    */
+   SongSummary(List<MidiTrack> tracks, TimeSignature timesig, int totalpulses)
+   {
+      this.timesig = timesig;
+      this.totalpulses = totalpulses;
+
+      int last = 0;
+      int low = 128;
+      int high = -1;
+      int channelset = 0;
+      boolean haslyrics = false;
+      notecounts = new int[tracks.size()];
+      for (int t = 0; t < tracks.size(); t++)
+      {
+         MidiTrack track = tracks.get(t);
+         NoteTable notes = track.getNoteTable();
+         int count = notes.Count();
+         notecounts[t] = count;
+         if (count > 0)
+         {
+            last = Math.max(last, notes.getStartTime(count - 1));
+         }
+         for (int i = 0; i < count; i++)
+         {
+            int number = notes.getNoteNumber(i);
+            low = Math.min(low, number);
+            high = Math.max(high, number);
+            channelset |= 1 << (notes.getChannel(i) & 0x0F);
+         }
+         if (track.getLyrics() != null)
+         {
+            haslyrics = true;
+         }
+      }
+
+      endtime = last;
+      lownote = (high < 0) ? -1 : low;
+      highnote = high;
+      channels = channelset;
+      lyrics = haslyrics;
+   }
+
+   /** Return the start time of the last note, in pulses */
+   public int getEndTime()
+   {
+      return endtime;
+   }
+
+   /**
+    * Return the length of the song in pulses: the latest end time of the
+    * last note of each track.
+    */
+   public int getTotalPulses()
+   {
+      return totalpulses;
+   }
+
+   /** Return the number of tracks */
+   public int getTrackCount()
+   {
+      return notecounts.length;
+   }
+
+   /** Return the number of notes in the given track */
+   public int getNoteCount(int tracknum)
+   {
+      return notecounts[tracknum];
+   }
+
+   /** Return the number of notes in all the tracks */
+   public int getNoteCount()
+   {
+      int total = 0;
+      for (int count : notecounts)
+      {
+         total += count;
+      }
+      return total;
+   }
+
+   /** Return the lowest note number, or -1 if there are no notes */
+   public int getLowNote()
+   {
+      return lownote;
+   }
+
+   /** Return the highest note number, or -1 if there are no notes */
+   public int getHighNote()
+   {
+      return highnote;
+   }
+
+   /** Return the channels that have notes, as a mask: bit c for channel c */
+   public int getChannels()
+   {
+      return channels;
+   }
+
+   /** Return true if the given channel has notes */
+   public boolean HasChannel(int channel)
+   {
+      return (channels & (1 << channel)) != 0;
+   }
+
+   /** Return true if any track has lyrics */
+   public boolean HasLyrics()
+   {
+      return lyrics;
+   }
+
+   /** Return the time signature at the start of the song */
+   public TimeSignature getTime()
+   {
+      return timesig;
+   }
+
+   /** Return the microseconds per quarter note at the start of the song */
+   public int getTempo()
+   {
+      return timesig.getTempo();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "SongSummary end=" + endtime + " pulses=" + totalpulses
+            + " tracks=" + notecounts.length + " notes=" + getNoteCount()
+            + " range=" + lownote + "-" + highnote + " channels=0x"
+            + Integer.toHexString(channels) + " lyrics=" + lyrics + " "
+            + timesig;
+   }
+}
@@ -0,0 +1,242 @@
+package core.midi.sheet.music;
+
+/*
+ * C# original Copyright (c) 2007-2012 Madhav Vaidyanathan
+ * Java port   Copyright(c) 2012 Lars Svensson
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+import java.util.Arrays;
+
+/**
+ * @class TempoMap The TempoMap holds every tempo change of a song, so that
+ *        times in pulses can be converted to and from real time, even when
+ *        the tempo changes during the song. The TimeSignature only holds the
+ *        first tempo.
+ * 
+ *        The song is divided into segments of constant tempo. Segment i
+ *        starts at pulses[i] and has tempos[i] microseconds per quarter note.
+ *        The time at the start of each segment is summed up front, in
+ *        elapsed[i], so a conversion is a binary search for the segment
+ *        followed by a single multiplication.
+ * 
+ *        To avoid rounding errors adding up over many segments, elapsed[i] is
+ *        kept in units of 1/quarternote microseconds (pulses times
+ *        microseconds per quarter note), and only divided at the end.
+ */
+public class TempoMap
+{
+   private int quarternote;
+   /** The number of pulses per quarter note */
+   private int count;
+   /** The number of segments */
+   private int[] pulses;
+   /** The start time of each segment, in pulses */
+   private int[] tempos;
+   /** The microseconds per quarter note of each segment */
+   private long[] elapsed;
+
+   /** The time at the start of each segment, in 1/quarternote microseconds */
+
+   /** The tempo used when a song has no tempo events */
+   public static final int DefaultTempo = 500000;
+
+   /**
+    * Create a TempoMap with a single tempo, for the given number of pulses
+    * per quarter note.
+    */
+   public TempoMap(int tempo, int quarternote)
+   {
+      this.quarternote = quarternote;
+      count = 1;
+      pulses = new int[] { 0 };
+      tempos = new int[] { tempo };
+      elapsed = new long[] { 0 };
+   }
+
+   /**
+    * Create a TempoMap from the tempo events of all the tracks. The given
+    * tempo is used from the start of the song until the first tempo event.
+    * When two tracks change the tempo at the same time, the later track
+    * wins.
+    */
+   public TempoMap(MidiEventList[] events, int quarternote, int tempo)
+   {
+      this.quarternote = quarternote;
+
+      /* Collect the tempo events, as (starttime, sequence number) keys, so a
+       * plain sort orders them by time, and by track within the same time.
+       */
+      int total = 0;
+      for (MidiEventList list : events)
+      {
+         for (int i = 0; i < list.Count(); i++)
+         {
+            if (list.getMetaevent(i) == MidiFile.MetaEventTempo)
+               total++;
+         }
+      }
+      long[] keys = new long[total];
+      int[] values = new int[total];
+      int n = 0;
+      for (MidiEventList list : events)
+      {
+         for (int i = 0; i < list.Count(); i++)
+         {
+            if (list.getMetaevent(i) == MidiFile.MetaEventTempo)
+            {
+               keys[n] = ((long) list.getStartTime(i) << 32) | n;
+               values[n] = list.getTempo(i);
+               n++;
+            }
+         }
+      }
+      Arrays.sort(keys);
+
+      pulses = new int[total + 1];
+      tempos = new int[total + 1];
+      elapsed = new long[total + 1];
+      pulses[0] = 0;
+      tempos[0] = tempo;
+      elapsed[0] = 0;
+      count = 1;
+      for (long key : keys)
+      {
+         int starttime = (int) (key >> 32);
+         int value = values[(int) key];
+         if (value <= 0)
+            continue;
+
+         int last = count - 1;
+         if (starttime == pulses[last])
+         {
+            /* A later tempo event at the same time replaces the earlier */
+            tempos[last] = value;
+         }
+         else
+         {
+            pulses[count] = starttime;
+            tempos[count] = value;
+            elapsed[count] = elapsed[last] + (long) (starttime - pulses[last])
+                  * tempos[last];
+            count++;
+         }
+      }
+   }
+
+   /** Return the number of pulses per quarter note */
+   public int getQuarter()
+   {
+      return quarternote;
+   }
+
+   /** Return the number of tempo segments */
+   public int Count()
+   {
+      return count;
+   }
+
+   /** Return the start time of segment i, in pulses */
+   public int getPulse(int i)
+   {
+      return pulses[i];
+   }
+
+   /** Return the microseconds per quarter note of segment i */
+   public int getTempo(int i)
+   {
+      return tempos[i];
+   }
+
+   /** Return the segment the given time (in pulses) belongs to */
+   private int FindPulse(int pulse)
+   {
+      int low = 0;
+      int high = count - 1;
+      while (low < high)
+      {
+         int mid = (low + high + 1) >>> 1;
+         if (pulses[mid] <= pulse)
+            low = mid;
+         else
+            high = mid - 1;
+      }
+      return low;
+   }
+
+   /**
+    * Return the segment the given time (in 1/quarternote microseconds)
+    * belongs to
+    */
+   private int FindElapsed(long time)
+   {
+      int low = 0;
+      int high = count - 1;
+      while (low < high)
+      {
+         int mid = (low + high + 1) >>> 1;
+         if (elapsed[mid] <= time)
+            low = mid;
+         else
+            high = mid - 1;
+      }
+      return low;
+   }
+
+   /** Return the tempo (microseconds per quarter note) at the given pulse */
+   public int GetTempo(int pulse)
+   {
+      return tempos[FindPulse(pulse)];
+   }
+
+   /** Convert a time in pulses to microseconds from the start of the song */
+   public long PulsesToMicroseconds(int pulse)
+   {
+      int i = FindPulse(pulse);
+      return (elapsed[i] + (long) (pulse - pulses[i]) * tempos[i])
+            / quarternote;
+   }
+
+   /**
+    * Convert a time in microseconds from the start of the song to pulses,
+    * rounding down
+    */
+   public int MicrosecondsToPulses(long microseconds)
+   {
+      long time = microseconds * quarternote;
+      int i = FindElapsed(time);
+      return pulses[i] + (int) ((time - elapsed[i]) / tempos[i]);
+   }
+
+   /**
+    * Return the number of pulses in the given number of microseconds,
+    * starting at the given time (in pulses)
+    */
+   public int PulsesInInterval(int pulse, long microseconds)
+   {
+      int i = FindPulse(pulse);
+      long time = elapsed[i] + (long) (pulse - pulses[i]) * tempos[i]
+            + microseconds * quarternote;
+      int j = FindElapsed(time);
+      return pulses[j] + (int) ((time - elapsed[j]) / tempos[j]) - pulse;
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder result = new StringBuilder("TempoMap quarter="
+            + quarternote);
+      for (int i = 0; i < count; i++)
+      {
+         result.append(" " + pulses[i] + ":" + tempos[i]);
+      }
+      return result.toString();
+   }
+}
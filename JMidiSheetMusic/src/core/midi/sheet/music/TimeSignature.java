@@ -53,7 +53,9 @@ public class TimeSignature {
         return measure; 
     }
 
-    /** Get the number of microseconds per quarter note */ 
+    /** Get the number of microseconds per quarter note, at the start
+     * of the song.  MidiFile.getTempoMap() has the later tempo changes.
+     */ 
     public int getTempo() {
         return tempo; 
     }